@@ -13,7 +13,9 @@ import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
 import io.flutter.plugin.common.MethodChannel.Result;
 import io.flutter.plugin.common.PluginRegistry.Registrar;
+import io.flutter.plugin.common.StandardMethodCodec;
 import io.wazo.callkeep.CallKeepModule;
+import io.wazo.callkeep.utils.CallKeepMessageCodec;
 
 /** FlutterCallkeepPlugin */
 public class FlutterCallkeepPlugin implements FlutterPlugin, MethodCallHandler, ActivityAware {
@@ -22,6 +24,7 @@ public class FlutterCallkeepPlugin implements FlutterPlugin, MethodCallHandler,
   /// This local reference serves to register the plugin with the Flutter Engine and unregister it
   /// when the Flutter Engine is detached from the Activity
   private MethodChannel channel;
+  private MethodChannel compactChannel;
   private CallKeepModule callKeep;
 
   /**
@@ -49,12 +52,18 @@ public class FlutterCallkeepPlugin implements FlutterPlugin, MethodCallHandler,
   private void startListening(final Context context, BinaryMessenger messenger) {
     channel = new MethodChannel(messenger, "FlutterCallKeep.Method");
     channel.setMethodCallHandler(this);
+    // Used by Dart once the compact codec has been negotiated in setup
+    compactChannel = new MethodChannel(messenger, "FlutterCallKeep.Method/compact",
+            new StandardMethodCodec(CallKeepMessageCodec.INSTANCE));
+    compactChannel.setMethodCallHandler(this);
     callKeep = new CallKeepModule(context, messenger);
   }
 
   private void stopListening() {
     channel.setMethodCallHandler(null);
     channel = null;
+    compactChannel.setMethodCallHandler(null);
+    compactChannel = null;
     callKeep.dispose();
     callKeep = null;
   }
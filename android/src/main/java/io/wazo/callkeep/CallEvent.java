@@ -0,0 +1,68 @@
+package io.wazo.callkeep;
+
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static io.wazo.callkeep.Constants.*;
+
+/**
+ * Immutable call event delivered through the {@link CallEventBus}.
+ *
+ * The action is one of the ACTION_* values in {@link Constants}; the remaining fields are only
+ * set when the action carries them.
+ */
+public final class CallEvent {
+    public final String action;
+    @Nullable public final String uuid;
+    @Nullable public final String number;
+    @Nullable public final String name;
+    @Nullable public final String dtmf;
+    // Payload of the events that are not about a single call
+    @Nullable public final Map<String, Object> body;
+
+    public CallEvent(String action, @Nullable String uuid, @Nullable String number, @Nullable String name, @Nullable String dtmf) {
+        this(action, uuid, number, name, dtmf, null);
+    }
+
+    private CallEvent(String action, @Nullable String uuid, @Nullable String number, @Nullable String name,
+                      @Nullable String dtmf, @Nullable Map<String, Object> body) {
+        this.action = action;
+        this.uuid = uuid;
+        this.number = number;
+        this.name = name;
+        this.dtmf = dtmf;
+        this.body = body != null ? Collections.unmodifiableMap(body) : null;
+    }
+
+    public CallEvent(String action) {
+        this(action, null, null, null, null);
+    }
+
+    public static CallEvent withBody(String action, @Nullable String uuid, Map<String, Object> body) {
+        return new CallEvent(action, uuid, null, null, null, body);
+    }
+
+    /**
+     * Builds an event from the extras of a connection.
+     */
+    public static CallEvent fromExtras(String action, ConnectionExtras extras) {
+        return new CallEvent(action, extras.getUuid(), extras.getNumber(), extras.getName(), null);
+    }
+
+    /**
+     * Builds an event from a connection attribute map (EXTRA_CALL_UUID, EXTRA_CALL_NUMBER, ...).
+     */
+    public static CallEvent fromAttributes(String action, @Nullable Map<String, String> attributeMap) {
+        if (attributeMap == null) {
+            return new CallEvent(action);
+        }
+        return new CallEvent(
+                action,
+                attributeMap.get(EXTRA_CALL_UUID),
+                attributeMap.get(EXTRA_CALL_NUMBER),
+                attributeMap.get(EXTRA_CALLER_NAME),
+                attributeMap.get("DTMF"));
+    }
+}
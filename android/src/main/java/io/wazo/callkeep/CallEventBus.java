@@ -0,0 +1,53 @@
+package io.wazo.callkeep;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process bus carrying {@link CallEvent}s from the connection service to the CallKeepModule.
+ *
+ * Listeners are always invoked on the main thread, in posting order. Events posted from the main
+ * thread are dispatched synchronously when nothing is queued ahead of them.
+ */
+public class CallEventBus {
+    public interface Listener {
+        void onCallEvent(CallEvent event);
+    }
+
+    private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private static final AtomicInteger pending = new AtomicInteger();
+
+    public static void register(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public static void unregister(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public static void post(final CallEvent event) {
+        if (Looper.myLooper() == Looper.getMainLooper() && pending.get() == 0) {
+            dispatch(event);
+            return;
+        }
+
+        pending.incrementAndGet();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                pending.decrementAndGet();
+                dispatch(event);
+            }
+        });
+    }
+
+    private static void dispatch(CallEvent event) {
+        for (Listener listener : listeners) {
+            listener.onCallEvent(event);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package io.wazo.callkeep;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Append-only journal of the calls registered in {@link CallRegistry}, kept in a memory-mapped
+ * file so that it survives the death of the process.
+ *
+ * Telecom disconnects the connections of a ConnectionService whose process dies, but neither the
+ * Dart side nor the app's media sessions are told. On the next setup the journal is replayed and
+ * the calls it still considers live, but which are no longer registered, are reported as ended.
+ *
+ * Appending only writes to the mapped pages and never waits for the disk. A segment ends at the
+ * first END byte: each record writes the END byte that follows it, then its type byte last, so a
+ * record torn by the death of the process is ignored on replay. Compaction writes the live calls
+ * to the other segment, then switches the header byte; it is proportional to the live calls, the
+ * stale records left after them are never read.
+ */
+class CallJournal {
+    private static final String TAG = "FLT:CallJournal";
+    private static final String FILE_NAME = "callkeep.journal";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Header byte selecting the active segment, followed by the two segments
+    private static final int SEGMENT_SIZE = 32 * 1024;
+    private static final int FILE_SIZE = 1 + 2 * SEGMENT_SIZE;
+    private static final int MAX_UUID_LENGTH = 255;
+
+    // Record: type (1 byte), uuid length (1 byte), uuid (UTF-8)
+    private static final byte END = 0;
+    private static final byte ADDED = 1;
+    private static final byte REMOVED = 2;
+
+    private static CallJournal instance = null;
+
+    private final MappedByteBuffer buffer;
+    // Calls added and not removed, in journal order
+    private final LinkedHashSet<String> live = new LinkedHashSet<>();
+    private int segment;
+    private int position;
+
+    /**
+     * @return the journal of this process, or null if the file cannot be mapped
+     */
+    @Nullable
+    static synchronized CallJournal open(Context context) {
+        if (instance == null) {
+            instance = open(new File(context.getNoBackupFilesDir(), FILE_NAME));
+        }
+        return instance;
+    }
+
+    @Nullable
+    static CallJournal open(File file) {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            // The mapping remains valid once the channel is closed
+            return new CallJournal(channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE));
+        } catch (IOException e) {
+            CallKeepLog.w(TAG, "Call journal unavailable", e);
+            return null;
+        }
+    }
+
+    private CallJournal(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        this.segment = buffer.get(0) == 1 ? 1 : 0;
+
+        int start = segmentStart(segment);
+        int offset = 0;
+        while (offset + 2 <= SEGMENT_SIZE) {
+            byte type = buffer.get(start + offset);
+            int length = buffer.get(start + offset + 1) & 0xff;
+            if ((type != ADDED && type != REMOVED) || offset + 2 + length > SEGMENT_SIZE) {
+                break;
+            }
+
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(start + offset + 2 + i);
+            }
+            String uuid = new String(bytes, UTF_8);
+            if (type == ADDED) {
+                live.add(uuid);
+            } else {
+                live.remove(uuid);
+            }
+            offset += 2 + length;
+        }
+        this.position = offset;
+    }
+
+    synchronized void recordAdded(@Nullable String uuid) {
+        if (uuid != null && live.add(uuid)) {
+            append(ADDED, uuid);
+        }
+    }
+
+    synchronized void recordRemoved(@Nullable String uuid) {
+        if (uuid != null && live.remove(uuid)) {
+            append(REMOVED, uuid);
+        }
+    }
+
+    /**
+     * Drops the journaled calls that are not registered anymore, then compacts the journal.
+     *
+     * @return the UUIDs of the dropped calls, lost with a previous process
+     */
+    synchronized List<String> reconcile(Collection<String> registered) {
+        ArrayList<String> lost = new ArrayList<>();
+        for (String uuid : live) {
+            if (!registered.contains(uuid)) {
+                lost.add(uuid);
+            }
+        }
+        live.removeAll(lost);
+        live.addAll(registered);
+        compact();
+        return lost;
+    }
+
+    private void append(byte type, String uuid) {
+        byte[] bytes = uuid.getBytes(UTF_8);
+        if (bytes.length > MAX_UUID_LENGTH) {
+            CallKeepLog.w(TAG, "UUID too long to be journaled: {}", uuid);
+            return;
+        }
+
+        if (position + 2 + bytes.length > SEGMENT_SIZE) {
+            // The compacted segment already reflects this record
+            compact();
+            return;
+        }
+        write(segmentStart(segment) + position, type, bytes);
+        position += 2 + bytes.length;
+    }
+
+    private void compact() {
+        int target = 1 - segment;
+        int start = segmentStart(target);
+        buffer.put(start, END);
+
+        int offset = 0;
+        for (String uuid : live) {
+            byte[] bytes = uuid.getBytes(UTF_8);
+            if (bytes.length > MAX_UUID_LENGTH) {
+                continue;
+            }
+            if (offset + 2 + bytes.length > SEGMENT_SIZE) {
+                CallKeepLog.w(TAG, "Call journal full, {} live calls", live.size());
+                break;
+            }
+            write(start + offset, ADDED, bytes);
+            offset += 2 + bytes.length;
+        }
+
+        // Publishes the compacted segment
+        buffer.put(0, (byte) target);
+        segment = target;
+        position = offset;
+    }
+
+    /**
+     * @param offset absolute offset of the record in the file
+     */
+    private void write(int offset, byte type, byte[] bytes) {
+        buffer.put(offset + 1, (byte) bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.put(offset + 2 + i, bytes[i]);
+        }
+        // Ends the segment after this record, in place of a stale one
+        int next = offset + 2 + bytes.length;
+        if (next < segmentEnd(offset)) {
+            buffer.put(next, END);
+        }
+        // Written last, the record only exists once its type is set
+        buffer.put(offset, type);
+    }
+
+    private static int segmentStart(int segment) {
+        return 1 + segment * SEGMENT_SIZE;
+    }
+
+    private static int segmentEnd(int offset) {
+        return offset < segmentStart(1) ? segmentStart(1) : segmentStart(2);
+    }
+}
@@ -17,47 +17,54 @@
 
 package io.wazo.callkeep;
 
-import android.annotation.SuppressLint;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.IBinder;
-import android.os.PowerManager;
-import android.util.Log;
+import android.os.SystemClock;
 
 import androidx.annotation.Nullable;
 
 public class CallKeepBackgroundMessagingService extends Service {
   private static final String TAG = "FLT:CallKeepService";
-  private static @Nullable PowerManager.WakeLock sWakeLock;
+  // elapsedRealtimeNanos() when the wakeup was requested, to measure the wakeup latency
+  public static final String EXTRA_WAKE_UP_AT = "wakeUpAt";
+
   /**
    * Acquire a wake lock to ensure the device doesn't go to sleep while processing background tasks.
+   *
+   * @deprecated the lease is not bound to a call and only ends with this service or its timeout,
+   * use {@link WakeLockManager#acquire(Context, String)}.
    */
-  @SuppressLint("WakelockTimeout")
+  @Deprecated
   public static void acquireWakeLockNow(Context context) {
-    if (sWakeLock == null || !sWakeLock.isHeld()) {
-      PowerManager powerManager = (PowerManager) context.getSystemService(POWER_SERVICE);
-      sWakeLock =
-              powerManager.newWakeLock(
-                      PowerManager.PARTIAL_WAKE_LOCK, CallKeepBackgroundMessagingService.class.getCanonicalName());
-      sWakeLock.setReferenceCounted(false);
-      sWakeLock.acquire();
+    WakeLockManager.acquire(context, null);
+  }
+
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId) {
+    if (intent == null) {
+      return START_NOT_STICKY;
     }
+
+    String uuid = intent.getStringExtra("callUUID");
+    CallKeepLog.d(TAG, "wakeUpApplication: {}, number: {}, displayName: {}", uuid, intent.getStringExtra("handle"), intent.getStringExtra("name"));
+    long wakeUpAt = intent.getLongExtra(EXTRA_WAKE_UP_AT, SystemClock.elapsedRealtimeNanos());
+    if (!HeadlessEngine.wakeUp(this, uuid, intent.getStringExtra("handle"), intent.getStringExtra("name"), wakeUpAt)) {
+      CallKeepLog.w(TAG, "No background handler registered in setup, cannot wake up the application");
+    }
+    return START_NOT_STICKY;
   }
 
   @Nullable
   @Override
   public IBinder onBind(Intent intent) {
-    Log.d(TAG, "wakeUpApplication: " + intent.getStringExtra("callUUID") + ", number : " + intent.getStringExtra("handle") + ", displayName:" + intent.getStringExtra("name"));
-    //TODO: not implemented
     return null;
   }
 
   @Override
   public void onDestroy() {
     super.onDestroy();
-    if (sWakeLock != null) {
-      sWakeLock.release();
-    }
+    WakeLockManager.releaseCall(null);
   }
 }
@@ -0,0 +1,163 @@
+package io.wazo.callkeep;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Level-gated logging of the io.wazo.callkeep package.
+ *
+ * Messages take "{}" placeholders filled with fixed-arity arguments, so a disabled level costs a
+ * single comparison: the message is neither concatenated nor formatted, and no varargs array is
+ * allocated. Primitive arguments have their own overloads, so they are only boxed once the level
+ * is known to be enabled. The level is set from the "logLevel" setup option and defaults to INFO,
+ * which keeps the numbers and names logged at DEBUG out of release logcat.
+ */
+public final class CallKeepLog {
+    public static final int NONE = Log.ASSERT + 1;
+    public static final int DEFAULT_LEVEL = Log.INFO;
+
+    private static volatile int level = DEFAULT_LEVEL;
+
+    private CallKeepLog() {
+    }
+
+    public static void setLevel(int level) {
+        CallKeepLog.level = level;
+    }
+
+    public static boolean isEnabled(int level) {
+        return level >= CallKeepLog.level;
+    }
+
+    /**
+     * @param name one of "verbose", "debug", "info", "warn", "error" or "none"
+     */
+    public static int parseLevel(@Nullable String name, int fallback) {
+        if (name == null) {
+            return fallback;
+        }
+        switch (name) {
+            case "verbose":
+                return Log.VERBOSE;
+            case "debug":
+                return Log.DEBUG;
+            case "info":
+                return Log.INFO;
+            case "warn":
+                return Log.WARN;
+            case "error":
+                return Log.ERROR;
+            case "none":
+                return NONE;
+            default:
+                return fallback;
+        }
+    }
+
+    public static void d(String tag, String message) {
+        if (isEnabled(Log.DEBUG)) {
+            Log.d(tag, message);
+        }
+    }
+
+    public static void d(String tag, String format, @Nullable Object arg1) {
+        if (isEnabled(Log.DEBUG)) {
+            Log.d(tag, format(format, 1, arg1, null, null));
+        }
+    }
+
+    public static void d(String tag, String format, long arg1) {
+        if (isEnabled(Log.DEBUG)) {
+            Log.d(tag, format(format, 1, arg1, null, null));
+        }
+    }
+
+    public static void d(String tag, String format, @Nullable Object arg1, @Nullable Object arg2) {
+        if (isEnabled(Log.DEBUG)) {
+            Log.d(tag, format(format, 2, arg1, arg2, null));
+        }
+    }
+
+    public static void d(String tag, String format, @Nullable Object arg1, @Nullable Object arg2, @Nullable Object arg3) {
+        if (isEnabled(Log.DEBUG)) {
+            Log.d(tag, format(format, 3, arg1, arg2, arg3));
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (isEnabled(Log.INFO)) {
+            Log.i(tag, message);
+        }
+    }
+
+    public static void i(String tag, String format, @Nullable Object arg1) {
+        if (isEnabled(Log.INFO)) {
+            Log.i(tag, format(format, 1, arg1, null, null));
+        }
+    }
+
+    public static void w(String tag, String message) {
+        if (isEnabled(Log.WARN)) {
+            Log.w(tag, message);
+        }
+    }
+
+    public static void w(String tag, String message, Throwable error) {
+        if (isEnabled(Log.WARN)) {
+            Log.w(tag, message, error);
+        }
+    }
+
+    public static void w(String tag, String format, @Nullable Object arg1) {
+        if (isEnabled(Log.WARN)) {
+            Log.w(tag, format(format, 1, arg1, null, null));
+        }
+    }
+
+    public static void w(String tag, String format, long arg1) {
+        if (isEnabled(Log.WARN)) {
+            Log.w(tag, format(format, 1, arg1, null, null));
+        }
+    }
+
+    public static void w(String tag, String format, @Nullable Object arg1, @Nullable Object arg2) {
+        if (isEnabled(Log.WARN)) {
+            Log.w(tag, format(format, 2, arg1, arg2, null));
+        }
+    }
+
+    public static void e(String tag, String message) {
+        if (isEnabled(Log.ERROR)) {
+            Log.e(tag, message);
+        }
+    }
+
+    public static void e(String tag, String message, Throwable error) {
+        if (isEnabled(Log.ERROR)) {
+            Log.e(tag, message, error);
+        }
+    }
+
+    public static void e(String tag, String format, @Nullable Object arg1, Throwable error) {
+        if (isEnabled(Log.ERROR)) {
+            Log.e(tag, format(format, 1, arg1, null, null), error);
+        }
+    }
+
+    private static String format(String format, int count, @Nullable Object arg1, @Nullable Object arg2, @Nullable Object arg3) {
+        StringBuilder builder = new StringBuilder(format.length() + 32 * count);
+        int start = 0;
+        for (int index = 0; index < count; index++) {
+            int placeholder = format.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            builder.append(format, start, placeholder);
+            builder.append(index == 0 ? arg1 : index == 1 ? arg2 : arg3);
+            start = placeholder + 2;
+        }
+        builder.append(format, start, format.length());
+        return builder.toString();
+    }
+}
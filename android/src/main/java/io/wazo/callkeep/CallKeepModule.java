@@ -20,30 +20,26 @@ package io.wazo.callkeep;
 import android.Manifest;
 import android.annotation.SuppressLint;
 import android.app.Activity;
-import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.graphics.drawable.Icon;
-import android.media.Ringtone;
-import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.telecom.CallAudioState;
 import android.telecom.Connection;
 import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.telephony.TelephonyManager;
-import android.util.Log;
 import android.view.WindowManager;
 import android.widget.RemoteViews;
 
@@ -52,19 +48,22 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.ContextCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.flutter.plugin.common.BinaryMessenger;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel.Result;
+import io.flutter.plugin.common.StandardMethodCodec;
+import io.wazo.callkeep.utils.CallKeepMessageCodec;
 import io.wazo.callkeep.utils.Callback;
 import io.wazo.callkeep.utils.ConstraintsMap;
 import io.wazo.callkeep.utils.ConstraintsArray;
@@ -88,64 +87,120 @@ public class CallKeepModule {
     private static TelecomManager telecomManager;
     private static TelephonyManager telephonyManager;
     private static MethodChannel.Result hasPhoneAccountPromise;
+    // Cached PhoneAccount enabled state, null until queried. Loaded by setup and refreshed on the
+    // executor only, so that the main-thread paths never make the binder call.
+    private static volatile Boolean phoneAccountEnabled = null;
+    // Set once the user may have toggled the account, the next executor path refreshes the state
+    private static volatile boolean phoneAccountStale = false;
+    // Label, capabilities and icon last registered by this process, to skip identical registrations
+    private static volatile String registeredAccountFingerprint = null;
     private final Context _context;
+    // Attached to the background engine rather than to an engine of the application
+    private final boolean _background;
     public static PhoneAccountHandle handle;
     private boolean isReceiverRegistered = false;
-    private VoiceBroadcastReceiver voiceBroadcastReceiver;
-    private ConstraintsMap _settings;
+    private final VoiceEventReceiver voiceEventReceiver = new VoiceEventReceiver();
+    private CallKeepSettings _settings = CallKeepSettings.DEFAULT;
     Activity _currentActivity = null;
     MethodChannel _eventChannel;
+    private final MethodChannel _standardEventChannel;
+    private final MethodChannel _compactEventChannel;
+
+    // Event batching: events raised within the window are delivered as one CallKeepEventBatch call
+    private static final String EVENT_BATCH = "CallKeepEventBatch";
+    private final Handler _mainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Object> _pendingEvents = new ArrayList<>();
+    // Events of the calls of running batchCallControl requests with aggregateEvents, by call UUID
+    private static final String EVENT_BATCH_CALL_CONTROL = "CallKeepDidPerformBatchCallControl";
+    private final HashMap<String, ArrayList<Object>> _aggregatedEvents = new HashMap<>();
+    private final Runnable _flushEvents = new Runnable() {
+        @Override
+        public void run() {
+            flushEvents();
+        }
+    };
+    // Mute and hold toggles of a call are collapsed into their final state
+    private final EventCoalescer _coalescer = new EventCoalescer(this::sendEventToFlutter);
 
     // v2
     private static final int NOTIFICATION_ID = 38496;
-    private static final String NOTIFICATION_CHANNEL_ID = "call_notification_id";
+    private static final long[] VIBRATION_PATTERN = new long[] { 100, 30, 100, 30, 100, 200, 200, 30, 200, 30, 200, 200, 100, 30, 100, 30, 100, 100, 30, 100, 30, 100, 200, 200, 30, 200, 30, 200, 200, 100, 30, 100, 30, 100 };
+    private final NotificationTemplateCache _notificationTemplates;
+    // Binder-heavy operations, kept in order per call and off the platform thread
+    private final TelecomExecutor _telecomExecutor = new TelecomExecutor();
 
     // v2
 
     public CallKeepModule(Context context, BinaryMessenger messenger) {
         this._context = context;
-        this._eventChannel = new MethodChannel(messenger, "FlutterCallKeep.Event");
+        this._background = HeadlessEngine.onPluginAttached();
+        this._notificationTemplates = new NotificationTemplateCache(context);
+        this._standardEventChannel = new MethodChannel(messenger, "FlutterCallKeep.Event");
+        this._compactEventChannel = new MethodChannel(messenger, "FlutterCallKeep.Event/compact",
+                new StandardMethodCodec(CallKeepMessageCodec.INSTANCE));
+        this._eventChannel = this._standardEventChannel;
     }
 
     public void setActivity(Activity activity) {
         this._currentActivity = activity;
+        ForegroundTracker.setActivity(activity);
     }
 
     public void dispose() {
-        LocalBroadcastManager.getInstance(this._context).unregisterReceiver(voiceBroadcastReceiver);
-        VoiceConnectionService.setPhoneAccountHandle(null);
+        CallEventBus.unregister(voiceEventReceiver);
+        isReceiverRegistered = false;
+        _coalescer.clear();
+        flushEvents();
+        _notificationTemplates.release();
+        _telecomExecutor.shutdown();
+        // The background engine is destroyed when idle, while the application keeps its account
+        if (!_background) {
+            VoiceConnectionService.setPhoneAccountHandle(null);
+        }
+        HeadlessEngine.onPluginDetached(_background);
     }
 
     public boolean HandleMethodCall(@NonNull MethodCall call, @NonNull Result result) {
         switch (call.method) {
             case "setup": {
-                setup(new ConstraintsMap(call.argument("options")));
-                result.success(null);
+                setup(new ConstraintsMap(call.argument("options")), result);
             }
             break;
             case "displayIncomingCall": {
-                displayIncomingCall(call.argument("uuid"), call.argument("handle"), call.argument("localizedCallerName"));
-                result.success(null);
+                // The timeline includes the time spent queued behind the other commands
+                CallMetrics.mark(call.argument("uuid"), CallMetrics.Stage.DISPLAY_INCOMING_CALL);
+                _telecomExecutor.execute(call.argument("uuid"), r -> {
+                    displayIncomingCall(call.argument("uuid"), call.argument("handle"), call.argument("localizedCallerName"));
+                    r.success(null);
+                }, result);
             }
             break;
             case "answerIncomingCall": {
-                answerIncomingCall(call.argument("uuid"));
-                result.success(null);
+                _telecomExecutor.executeOnMainThread(call.argument("uuid"), r -> {
+                    answerIncomingCall(call.argument("uuid"));
+                    r.success(null);
+                }, result);
             }
             break;
             case "startCall": {
-                startCall(call.argument("uuid"), call.argument("number"), call.argument("callerName"));
-                result.success(null);
+                _telecomExecutor.execute(call.argument("uuid"), r -> {
+                    startCall(call.argument("uuid"), call.argument("number"), call.argument("callerName"));
+                    r.success(null);
+                }, result);
             }
             break;
             case "endCall": {
-                endCall(call.argument("uuid"));
-                result.success(null);
+                _telecomExecutor.executeOnMainThread(call.argument("uuid"), r -> {
+                    endCall(call.argument("uuid"));
+                    r.success(null);
+                }, result);
             }
             break;
             case "endAllCalls": {
-                endAllCalls();
-                result.success(null);
+                _telecomExecutor.executeOnMainThread(null, r -> {
+                    endAllCalls();
+                    r.success(null);
+                }, result);
             }
             break;
             case "checkPhoneAccountPermission": {
@@ -153,41 +208,53 @@ public class CallKeepModule {
             }
             break;
             case "checkDefaultPhoneAccount": {
-                checkDefaultPhoneAccount(result);
+                _telecomExecutor.execute(this::checkDefaultPhoneAccount, result);
             }
             break;
             case "setOnHold": {
-                setOnHold(call.argument("uuid"), call.argument("hold"));
-                result.success(null);
+                _telecomExecutor.executeOnMainThread(call.argument("uuid"), r -> {
+                    setOnHold(call.argument("uuid"), booleanArgument(call, "hold"));
+                    r.success(null);
+                }, result);
             }
             break;
             case "reportEndCallWithUUID": {
-                reportEndCallWithUUID(call.argument("uuid"), call.argument("reason"));
-                result.success(null);
+                _telecomExecutor.executeOnMainThread(call.argument("uuid"), r -> {
+                    reportEndCallWithUUID(call.argument("uuid"), intArgument(call, "reason"));
+                    r.success(null);
+                }, result);
             }
             break;
             case "rejectCall": {
-                rejectCall(call.argument("uuid"));
-                result.success(null);
+                _telecomExecutor.executeOnMainThread(call.argument("uuid"), r -> {
+                    rejectCall(call.argument("uuid"));
+                    r.success(null);
+                }, result);
             }
             break;
             case "setMutedCall": {
-                setMutedCall(call.argument("uuid"), call.argument("muted"));
-                result.success(null);
+                _telecomExecutor.executeOnMainThread(call.argument("uuid"), r -> {
+                    setMutedCall(call.argument("uuid"), booleanArgument(call, "muted"));
+                    r.success(null);
+                }, result);
             }
             break;
             case "sendDTMF": {
-                sendDTMF(call.argument("uuid"), call.argument("key"));
-                result.success(null);
+                _telecomExecutor.executeOnMainThread(call.argument("uuid"), r -> {
+                    sendDTMF(call.argument("uuid"), call.argument("key"));
+                    r.success(null);
+                }, result);
             }
             break;
             case "updateDisplay": {
-                updateDisplay(call.argument("uuid"), call.argument("displayName"), call.argument("handle"));
-                result.success(null);
+                _telecomExecutor.executeOnMainThread(call.argument("uuid"), r -> {
+                    updateDisplay(call.argument("uuid"), call.argument("displayName"), call.argument("handle"));
+                    r.success(null);
+                }, result);
             }
             break;
             case "hasPhoneAccount": {
-                hasPhoneAccount(result);
+                _telecomExecutor.execute(this::hasPhoneAccount, result);
             }
             break;
             case "hasOutgoingCall": {
@@ -209,8 +276,10 @@ public class CallKeepModule {
             }
             break;
             case "setCurrentCallActive": {
-                setCurrentCallActive(call.argument("uuid"));
-                result.success(null);
+                _telecomExecutor.executeOnMainThread(call.argument("uuid"), r -> {
+                    setCurrentCallActive(call.argument("uuid"));
+                    r.success(null);
+                }, result);
             }
             break;
             case "openPhoneAccounts": {
@@ -222,24 +291,45 @@ public class CallKeepModule {
             }
             break;
             case "displayCustomIncomingCall": {
-                displayCustomIncomingCall(
-                        call.argument("packageName"),
-                        call.argument("className"),
-                        call.argument("icon"),
-                        call.argument("extra"),
-                        call.argument("contentTitle"),
-                        call.argument("answerText"),
-                        call.argument("declineText"),
-                        call.argument("ringtoneUri")
-                );
-                result.success(null);
+                _telecomExecutor.execute(r -> {
+                    displayCustomIncomingCall(
+                            call.argument("packageName"),
+                            call.argument("className"),
+                            call.argument("icon"),
+                            call.argument("extra"),
+                            call.argument("contentTitle"),
+                            call.argument("answerText"),
+                            call.argument("declineText"),
+                            call.argument("ringtoneUri")
+                    );
+                    r.success(null);
+                }, result);
             }
             break;
             case "dismissCustomIncomingCall": {
-                dismissCustomIncomingCall();
+                _telecomExecutor.execute(r -> {
+                    dismissCustomIncomingCall();
+                    r.success(null);
+                }, result);
+            }
+            break;
+            case "batchCallControl": {
+                batchCallControl(call.argument("commands"), booleanArgument(call, "aggregateEvents"), result);
+            }
+            break;
+            case "getMetrics": {
+                getMetrics(result);
+            }
+            break;
+            case "resetMetrics": {
+                resetMetrics();
                 result.success(null);
             }
             break;
+            case "dumpFlightRecorder": {
+                result.success(FlightRecorder.dump().toMap());
+            }
+            break;
             default:
                 return false;
         }
@@ -247,13 +337,69 @@ public class CallKeepModule {
         return true;
     }
 
-    public void setup(ConstraintsMap options) {
-        VoiceConnectionService.setAvailable(false);
-        this._settings = options;
-        if (isConnectionServiceAvailable()) {
+    private static boolean booleanArgument(MethodCall call, String key) {
+        Object value = call.argument(key);
+        return value instanceof Boolean && (Boolean) value;
+    }
+
+    private static int intArgument(MethodCall call, String key) {
+        Object value = call.argument(key);
+        return value instanceof Number ? ((Number) value).intValue() : 0;
+    }
+
+    public void setup(ConstraintsMap options, @NonNull MethodChannel.Result result) {
+        this._settings = CallKeepSettings.fromOptions(options, getAppContext());
+        CallKeepLog.setLevel(_settings.logLevel);
+        VoiceConnectionService.reachability.attach(_context);
+        VoiceConnectionService.reachability.configure(
+                _settings.reachabilityPercentile,
+                _settings.reachabilityTimeoutFloorMs,
+                _settings.reachabilityTimeoutCeilingMs);
+        flushEvents();
+        WakeLockManager.configure(_settings.wakeLockTimeoutMs);
+        _coalescer.configure(_settings.coalesceWindowMs);
+        HeadlessEngine.setCallbackHandles(getAppContext(),
+                _settings.backgroundDispatcherHandle, _settings.backgroundHandlerHandle);
+        this._eventChannel = _settings.compactCodec ? _compactEventChannel : _standardEventChannel;
+        // Tells Dart whether it may switch to the compact channels
+        final boolean compact = _eventChannel == _compactEventChannel;
+        if (!isConnectionServiceAvailable()) {
+            result.success(compact);
+            return;
+        }
+
+        _telecomExecutor.execute(r -> {
             this.registerPhoneAccount();
-            this.registerEvents();
-            VoiceConnectionService.setAvailable(true);
+            final List<String> lostCalls = recoverLostCalls();
+            _mainHandler.post(() -> {
+                // The plugin may have been detached while the account was being registered
+                if (!_telecomExecutor.isShutdown()) {
+                    this.registerEvents();
+                    VoiceConnectionService.setAvailable(true);
+                    reportLostCalls(lostCalls);
+                }
+                r.success(compact);
+            });
+        }, result);
+    }
+
+
+    /**
+     * Telecom disconnects the calls of a process that dies. Finds the calls journaled by a previous
+     * process that are not registered anymore.
+     */
+    private List<String> recoverLostCalls() {
+        CallRegistry registry = VoiceConnectionService.currentConnections;
+        registry.attachJournal(CallJournal.open(getAppContext()));
+        return registry.recoverLostCalls();
+    }
+
+    private void reportLostCalls(List<String> lostCalls) {
+        for (String uuid : lostCalls) {
+            CallKeepLog.d(TAG, "Call lost with a previous process: {}", uuid);
+            ConstraintsMap args = new ConstraintsMap();
+            args.putString("callUUID", uuid);
+            sendEventToFlutter("CallKeepPerformEndCallAction", args);
         }
     }
 
@@ -272,7 +418,6 @@ public class CallKeepModule {
             return;
         }
 
-        voiceBroadcastReceiver = new VoiceBroadcastReceiver();
         registerReceiver();
         VoiceConnectionService.setPhoneAccountHandle(handle);
     }
@@ -283,10 +428,8 @@ public class CallKeepModule {
         final String packageName = getAppContext().getPackageName();
         final RemoteViews notificationView = new RemoteViews(packageName, R.layout.call_notification_layout);
 
-        final int icon = getAppContext().getResources().getIdentifier("icon", "drawable", packageName);
-
-        final Intent intent = getAppContext().getPackageManager().getLaunchIntentForPackage(packageName);
-        final PendingIntent pendingIntent = PendingIntent.getActivity(getAppContext(), 0, intent, 0);
+        final int icon = _notificationTemplates.getDrawableId("icon");
+        final PendingIntent pendingIntent = _notificationTemplates.getLaunchPendingIntent();
 
         notificationView.setTextViewText(R.id.callerName, callerName);
         notificationView.setImageViewResource(R.id.logo, icon);
@@ -313,17 +456,10 @@ public class CallKeepModule {
         final PendingIntent declineCallPendingIntent = PendingIntent.getBroadcast(getAppContext(), 0, declineCallIntent, 0);
         notificationView.setOnClickPendingIntent(R.id.declineBtn, declineCallPendingIntent);
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            NotificationChannel channel = new NotificationChannel(
-                    NOTIFICATION_CHANNEL_ID,
-                    "Call Notification Channel",
-                    NotificationManager.IMPORTANCE_HIGH);
-            manager.createNotificationChannel(channel);
-        }
-
-        final Uri ringtoneUri = RingtoneManager.getActualDefaultRingtoneUri(getAppContext(), RingtoneManager.TYPE_RINGTONE);
+        _notificationTemplates.ensureChannel(manager, NotificationTemplateCache.CALL_CHANNEL_ID);
+        final Uri ringtoneUri = _notificationTemplates.getDefaultRingtoneUri();
 
-        final NotificationCompat.Builder builder = new NotificationCompat.Builder(getAppContext(), NOTIFICATION_CHANNEL_ID);
+        final NotificationCompat.Builder builder = new NotificationCompat.Builder(getAppContext(), NotificationTemplateCache.CALL_CHANNEL_ID);
         builder.setSmallIcon(icon)
                 .setPriority(NotificationCompat.PRIORITY_MAX)
                 .setCategory(NotificationCompat.CATEGORY_CALL)
@@ -335,7 +471,7 @@ public class CallKeepModule {
                 .setOngoing(true)
                 .setTicker("Incoming Call")
                 .setSound(ringtoneUri)
-                .setVibrate(new long[] { 100, 30, 100, 30, 100, 200, 200, 30, 200, 30, 200, 200, 100, 30, 100, 30, 100, 100, 30, 100, 30, 100, 200, 200, 30, 200, 30, 200, 200, 100, 30, 100, 30, 100 })
+                .setVibrate(VIBRATION_PATTERN)
                 .setFullScreenIntent(pendingIntent, true)
                 .setAutoCancel(true);
 
@@ -344,9 +480,10 @@ public class CallKeepModule {
 
 
     public void displayIncomingCall(String uuid, String number, String callerName) {
+        FlightRecorder.record(FlightRecorder.DISPLAY_INCOMING_CALL, uuid);
         final NotificationManager notificationManager = (NotificationManager) getAppContext().getSystemService(Context.NOTIFICATION_SERVICE);
         final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(getAppContext());
-        if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
+        if (!isConnectionServiceAvailable() || !loadPhoneAccountState()) {
 
             dismissCustomIncomingCall();
 
@@ -354,7 +491,7 @@ public class CallKeepModule {
             return;
         }
 
-        Log.d(TAG, "displayIncomingCall number: " + number + ", callerName: " + callerName);
+        CallKeepLog.d(TAG, "displayIncomingCall number: {}, callerName: {}", number, callerName);
 
         Bundle extras = new Bundle();
         Uri uri = Uri.fromParts(PhoneAccount.SCHEME_TEL, number, null);
@@ -363,11 +500,13 @@ public class CallKeepModule {
         extras.putString(EXTRA_CALLER_NAME, callerName);
         extras.putString(EXTRA_CALL_UUID, uuid);
 
+        CallMetrics.mark(uuid, CallMetrics.Stage.ADD_NEW_INCOMING_CALL);
         telecomManager.addNewIncomingCall(handle, extras);
     }
 
 
     public void answerIncomingCall(String uuid) {
+        FlightRecorder.record(FlightRecorder.ANSWER_INCOMING_CALL, uuid);
         if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
             return;
         }
@@ -418,15 +557,12 @@ public class CallKeepModule {
         }
 
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            final NotificationChannel channel = new NotificationChannel("incoming_calls", "Incoming Calls", NotificationManager.IMPORTANCE_HIGH);
-            notificationManager.createNotificationChannel(channel);
-        }
+        _notificationTemplates.ensureChannel(notificationManager, NotificationTemplateCache.INCOMING_CALLS_CHANNEL_ID);
 
         final PendingIntent pendingIntent = PendingIntent.getActivity(getAppContext(), 0, launchIntent, PendingIntent.FLAG_CANCEL_CURRENT);
-        final NotificationCompat.Builder builder = new NotificationCompat.Builder(getAppContext(), "incoming_calls");
+        final NotificationCompat.Builder builder = new NotificationCompat.Builder(getAppContext(), NotificationTemplateCache.INCOMING_CALLS_CHANNEL_ID);
 
-        builder.setSmallIcon(getAppContext().getResources().getIdentifier(icon, "drawable", getAppContext().getPackageName()));
+        builder.setSmallIcon(_notificationTemplates.getDrawableId(icon));
         builder.setFullScreenIntent(pendingIntent, true);
         builder.setOngoing(true);
         builder.setCategory(NotificationCompat.CATEGORY_CALL);
@@ -459,11 +595,12 @@ public class CallKeepModule {
 
     @SuppressLint("MissingPermission")
     public void startCall(String uuid, String number, String callerName) {
-        if (!isConnectionServiceAvailable() || !hasPhoneAccount() || !hasPermissions() || number == null) {
+        FlightRecorder.record(FlightRecorder.START_CALL, uuid);
+        if (!isConnectionServiceAvailable() || !loadPhoneAccountState() || !hasPermissions() || number == null) {
             return;
         }
 
-        Log.d(TAG, "startCall number: " + number + ", callerName: " + callerName);
+        CallKeepLog.d(TAG, "startCall number: {}, callerName: {}", number, callerName);
 
         Bundle extras = new Bundle();
         Uri uri = Uri.fromParts(PhoneAccount.SCHEME_TEL, number, null);
@@ -481,35 +618,40 @@ public class CallKeepModule {
     }
 
 
-    public void endCall(String uuid) {
-        Log.d(TAG, "endCall called");
+    public boolean endCall(String uuid) {
+        CallKeepLog.d(TAG, "endCall called");
+        FlightRecorder.record(FlightRecorder.END_CALL, uuid);
         if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
-            return;
+            return false;
         }
 
         Connection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
-            return;
+            return false;
         }
         conn.onDisconnect();
 
-        Log.d(TAG, "endCall executed");
+        CallKeepLog.d(TAG, "endCall executed");
+        return true;
     }
 
 
     public void endAllCalls() {
-        Log.d(TAG, "endAllCalls called");
+        CallKeepLog.d(TAG, "endAllCalls called");
+        FlightRecorder.record(FlightRecorder.END_ALL_CALLS, null);
         if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
             return;
         }
 
-        Map<String, VoiceConnection> currentConnections = VoiceConnectionService.currentConnections;
-        for (Map.Entry<String, VoiceConnection> connectionEntry : currentConnections.entrySet()) {
-            Connection connectionToEnd = connectionEntry.getValue();
-            connectionToEnd.onDisconnect();
+        // Iterate over a snapshot: onDisconnect() removes the connection from the registry.
+        for (VoiceConnection connectionToEnd : VoiceConnectionService.currentConnections.snapshot()) {
+            // Ending a conference member may have ended the others already
+            if (connectionToEnd.getState() != Connection.STATE_DISCONNECTED) {
+                connectionToEnd.onDisconnect();
+            }
         }
 
-        Log.d(TAG, "endAllCalls executed");
+        CallKeepLog.d(TAG, "endAllCalls executed");
     }
 
 
@@ -557,7 +699,7 @@ public class CallKeepModule {
 
 
     public void checkDefaultPhoneAccount(@NonNull MethodChannel.Result result) {
-        if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
+        if (!isConnectionServiceAvailable() || !loadPhoneAccountState()) {
             result.success(true);
             return;
         }
@@ -574,10 +716,11 @@ public class CallKeepModule {
     }
 
 
-    public void setOnHold(String uuid, boolean shouldHold) {
+    public boolean setOnHold(String uuid, boolean shouldHold) {
+        FlightRecorder.record(FlightRecorder.SET_ON_HOLD, uuid, shouldHold ? 1 : 0);
         Connection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
-            return;
+            return false;
         }
 
         if (shouldHold == true) {
@@ -585,40 +728,46 @@ public class CallKeepModule {
         } else {
             conn.onUnhold();
         }
+        return true;
     }
 
 
-    public void reportEndCallWithUUID(String uuid, int reason) {
+    public boolean reportEndCallWithUUID(String uuid, int reason) {
+        FlightRecorder.record(FlightRecorder.REPORT_END_CALL, uuid, reason);
         if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
-            return;
+            return false;
         }
 
         VoiceConnection conn = (VoiceConnection) VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
-            return;
+            return false;
         }
         conn.reportDisconnect(reason);
+        return true;
     }
 
 
-    public void rejectCall(String uuid) {
+    public boolean rejectCall(String uuid) {
+        FlightRecorder.record(FlightRecorder.REJECT_CALL, uuid);
         if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
-            return;
+            return false;
         }
 
         Connection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
-            return;
+            return false;
         }
 
         conn.onReject();
+        return true;
     }
 
 
-    public void setMutedCall(String uuid, boolean shouldMute) {
+    public boolean setMutedCall(String uuid, boolean shouldMute) {
+        FlightRecorder.record(FlightRecorder.SET_MUTED, uuid, shouldMute ? 1 : 0);
         Connection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
-            return;
+            return false;
         }
 
         CallAudioState newAudioState = null;
@@ -631,10 +780,12 @@ public class CallKeepModule {
                     conn.getCallAudioState().getSupportedRouteMask());
         }
         conn.onCallAudioStateChanged(newAudioState);
+        return true;
     }
 
 
     public void sendDTMF(String uuid, String key) {
+        FlightRecorder.record(FlightRecorder.SEND_DTMF, uuid, key != null && !key.isEmpty() ? key.charAt(0) : 0);
         Connection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
             return;
@@ -645,6 +796,7 @@ public class CallKeepModule {
 
 
     public void updateDisplay(String uuid, String displayName, String uri) {
+        FlightRecorder.record(FlightRecorder.UPDATE_DISPLAY, uuid);
         Connection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
             return;
@@ -660,7 +812,8 @@ public class CallKeepModule {
             this.initializeTelecomManager();
         }
 
-        result.success(hasPhoneAccount());
+        // Explicit queries always go to Telecom, the user may have toggled the account
+        result.success(refreshPhoneAccountState());
     }
 
 
@@ -685,6 +838,7 @@ public class CallKeepModule {
 
 
     public void setCurrentCallActive(String uuid) {
+        FlightRecorder.record(FlightRecorder.SET_CURRENT_CALL_ACTIVE, uuid);
         Connection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
             return;
@@ -695,12 +849,143 @@ public class CallKeepModule {
     }
 
 
+    /**
+     * Runs a list of call-control commands in one channel crossing and replies once with a
+     * {uuid, success, error} entry per command, in the order of the request.
+     *
+     * Each command is a flat map holding the method (endCall, rejectCall, setMutedCall, setOnHold
+     * or reportEndCallWithUUID), the uuid of the call and the argument of the method: muted, hold
+     * or reason. It is queued behind the pending operations of its own call. The mute and hold
+     * toggles held back for the calls of the batch are delivered before the reply. With
+     * aggregateEvents, the events raised for those calls are delivered as a single
+     * CallKeepDidPerformBatchCallControl instead, while the events of other calls go on as usual.
+     */
+    public void batchCallControl(@Nullable List<Map<String, Object>> commands, final boolean aggregateEvents, @NonNull MethodChannel.Result result) {
+        if (commands == null || commands.isEmpty()) {
+            result.success(new ArrayList<>());
+            return;
+        }
+
+        final int count = commands.size();
+        final Object[] replies = new Object[count];
+        final AtomicInteger remaining = new AtomicInteger(count);
+        final LinkedHashSet<String> uuids = new LinkedHashSet<>();
+        for (Map<String, Object> command : commands) {
+            Object uuid = command.get("uuid");
+            if (uuid instanceof String) {
+                uuids.add((String) uuid);
+            }
+        }
+        final ArrayList<Object> events = new ArrayList<>();
+        if (aggregateEvents) {
+            for (String uuid : uuids) {
+                // A call already aggregated by a running batch stays with it
+                if (!_aggregatedEvents.containsKey(uuid)) {
+                    _aggregatedEvents.put(uuid, events);
+                }
+            }
+        }
+        final Runnable complete = () -> {
+            for (String uuid : uuids) {
+                _coalescer.flush(uuid);
+            }
+            if (aggregateEvents) {
+                for (String uuid : uuids) {
+                    if (_aggregatedEvents.get(uuid) == events) {
+                        _aggregatedEvents.remove(uuid);
+                    }
+                }
+                if (!events.isEmpty()) {
+                    // Events raised before the batch are delivered first
+                    flushEvents();
+                    _eventChannel.invokeMethod(EVENT_BATCH_CALL_CONTROL, events);
+                }
+            }
+            result.success(Arrays.asList(replies));
+        };
+
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            final ConstraintsMap command = new ConstraintsMap(commands.get(i));
+            final String uuid = command.getString("uuid");
+            final Runnable task = () -> {
+                ConstraintsMap reply = new ConstraintsMap();
+                reply.putString("uuid", uuid);
+                try {
+                    reply.putBoolean("success", runCallControl(command, uuid));
+                } catch (RuntimeException e) {
+                    CallKeepLog.e(TAG, "batchCallControl failed for {}", uuid, e);
+                    reply.putBoolean("success", false);
+                    reply.putString("error", e.getMessage());
+                }
+                replies[index] = reply.toMap();
+                // Events raised by the commands are already queued on the main looper, ahead of this
+                if (remaining.decrementAndGet() == 0) {
+                    _mainHandler.post(complete);
+                }
+            };
+            if (!_telecomExecutor.submit(uuid, true, task)) {
+                ConstraintsMap reply = new ConstraintsMap();
+                reply.putString("uuid", uuid);
+                reply.putBoolean("success", false);
+                reply.putString("error", "CallKeep has been disposed");
+                replies[index] = reply.toMap();
+                if (remaining.decrementAndGet() == 0) {
+                    _mainHandler.post(complete);
+                }
+            }
+        }
+    }
+
+    private boolean runCallControl(ConstraintsMap command, String uuid) {
+        String method = command.getString("method", "");
+        switch (method) {
+            case "endCall":
+                return endCall(uuid);
+            case "rejectCall":
+                return rejectCall(uuid);
+            case "setMutedCall":
+                return setMutedCall(uuid, command.getBoolean("muted", false));
+            case "setOnHold":
+                return setOnHold(uuid, command.getBoolean("hold", false));
+            case "reportEndCallWithUUID":
+                return reportEndCallWithUUID(uuid, command.getInt("reason", 0));
+            default:
+                throw new IllegalArgumentException("Unsupported batch method: " + method);
+        }
+    }
+
+
+    public void getMetrics(@NonNull MethodChannel.Result result) {
+        ConstraintsMap metrics = new ConstraintsMap();
+        metrics.putMap("stages", CallMetrics.toConstraintsMap().toMap());
+        metrics.putMap("queues", _telecomExecutor.toConstraintsMap().toMap());
+        metrics.putMap("backgroundWakeups", HeadlessEngine.toConstraintsMap().toMap());
+        metrics.putMap("wakeLocks", WakeLockManager.toConstraintsMap().toMap());
+        metrics.putMap("coalescing", _coalescer.toConstraintsMap().toMap());
+        metrics.putMap("reachability", VoiceConnectionService.reachability.toConstraintsMap().toMap());
+        result.success(metrics.toMap());
+    }
+
+
+    public void resetMetrics() {
+        CallMetrics.reset();
+        _telecomExecutor.resetMetrics();
+        HeadlessEngine.resetMetrics();
+        WakeLockManager.resetMetrics();
+        _coalescer.resetMetrics();
+    }
+
+
     public void openPhoneAccounts(@NonNull MethodChannel.Result result) {
         if (!isConnectionServiceAvailable()) {
             result.error("ConnectionServiceNotAvailable", null, null);
             return;
         }
 
+        // The user may enable or disable the account from the settings screen
+        phoneAccountStale = true;
+
         if (Build.MANUFACTURER.equalsIgnoreCase("Samsung")) {
             Intent intent = new Intent();
             intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_MULTIPLE_TASK);
@@ -730,7 +1015,7 @@ public class CallKeepModule {
         Intent focusIntent = context.getPackageManager().getLaunchIntentForPackage(packageName).cloneFilter();
         Activity activity = this._currentActivity;
         boolean isOpened = activity != null;
-        Log.d(TAG, "backToForeground, app isOpened ?" + (isOpened ? "true" : "false"));
+        CallKeepLog.d(TAG, "backToForeground, app isOpened ? {}", isOpened);
         if (isOpened) {
             focusIntent.addFlags(Intent.FLAG_ACTIVITY_REORDER_TO_FRONT);
             activity.startActivity(focusIntent);
@@ -752,6 +1037,7 @@ public class CallKeepModule {
 
         handle = new PhoneAccountHandle(cName, appName);
         telecomManager = (TelecomManager) context.getSystemService(Context.TELECOM_SERVICE);
+        phoneAccountEnabled = null;
     }
 
     private void registerPhoneAccount(Context appContext) {
@@ -759,27 +1045,98 @@ public class CallKeepModule {
             return;
         }
 
-        this.initializeTelecomManager();
         String appName = this.getApplicationName(this.getAppContext());
+        if (telecomManager == null || handle == null || !appName.equals(handle.getId())) {
+            this.initializeTelecomManager();
+        }
+        telephonyManager = (TelephonyManager) this.getAppContext().getSystemService(Context.TELEPHONY_SERVICE);
+
+        int capabilities = PhoneAccount.CAPABILITY_CALL_PROVIDER;
+        String fingerprint = appName + '|' + capabilities + '|' + _settings.imageResId;
+        if (fingerprint.equals(registeredAccountFingerprint)) {
+            // Already registered by this process, e.g. setup after a hot restart
+            loadPhoneAccountState();
+            return;
+        }
+
+        PhoneAccount registered = telecomManager.getPhoneAccount(handle);
+        if (isSameAccount(registered, appName, capabilities, _settings.imageResId)) {
+            phoneAccountEnabled = registered.isEnabled();
+            phoneAccountStale = false;
+            registeredAccountFingerprint = fingerprint;
+            return;
+        }
 
         PhoneAccount.Builder builder = new PhoneAccount.Builder(handle, appName)
-                .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER);
+                .setCapabilities(capabilities);
 
-        if (_settings != null && _settings.hasKey("imageName")) {
-            int identifier = appContext.getResources().getIdentifier(_settings.getString("imageName"), "drawable", appContext.getPackageName());
-            Icon icon = Icon.createWithResource(appContext, identifier);
+        if (_settings.imageResId != 0) {
+            Icon icon = Icon.createWithResource(appContext, _settings.imageResId);
             builder.setIcon(icon);
         }
 
         PhoneAccount account = builder.build();
 
-        telephonyManager = (TelephonyManager) this.getAppContext().getSystemService(Context.TELEPHONY_SERVICE);
-
+        // Only an actual re-registration makes the service unavailable, until setup completes
+        VoiceConnectionService.setAvailable(false);
         telecomManager.registerPhoneAccount(account);
+        registeredAccountFingerprint = fingerprint;
+        refreshPhoneAccountState();
+    }
+
+    private static boolean isSameAccount(@Nullable PhoneAccount account, String label, int capabilities, int iconResId) {
+        if (account == null || account.getLabel() == null || !label.contentEquals(account.getLabel())
+                || account.getCapabilities() != capabilities) {
+            return false;
+        }
+
+        Icon icon = account.getIcon();
+        if (iconResId == 0) {
+            return icon == null;
+        }
+        // The icon resource can only be read back since api level 28, re-register below that
+        return icon != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P
+                && icon.getType() == Icon.TYPE_RESOURCE && icon.getResId() == iconResId;
     }
 
     private void sendEventToFlutter(String eventName, @Nullable ConstraintsMap params) {
-        _eventChannel.invokeMethod(eventName, params.toMap());
+        Map<String, Object> body = params != null ? params.toMap() : null;
+        if (body != null) {
+            CallMetrics.mark((String) body.get("callUUID"), CallMetrics.Stage.EVENT_SENT);
+        }
+        ArrayList<Object> aggregated = body != null && !_aggregatedEvents.isEmpty()
+                ? _aggregatedEvents.get(body.get("callUUID"))
+                : null;
+        if (aggregated == null && !_settings.batchEvents) {
+            _eventChannel.invokeMethod(eventName, body);
+            return;
+        }
+
+        ConstraintsMap event = new ConstraintsMap();
+        event.putString("event", eventName);
+        event.putMap("body", body);
+        if (aggregated != null) {
+            // Delivered with the reply of its batchCallControl
+            aggregated.add(event.toMap());
+            return;
+        }
+        _pendingEvents.add(event.toMap());
+
+        // Schedule a single flush for everything raised in this looper turn (or window)
+        if (_pendingEvents.size() == 1) {
+            _mainHandler.postDelayed(_flushEvents, _settings.batchWindowMs);
+        }
+    }
+
+    private void flushEvents() {
+        _mainHandler.removeCallbacks(_flushEvents);
+        if (_pendingEvents.isEmpty()) {
+            return;
+        }
+
+        ArrayList<Object> events = new ArrayList<>(_pendingEvents);
+        _pendingEvents.clear();
+        _eventChannel.invokeMethod(EVENT_BATCH, events);
     }
 
     private String getApplicationName(Context appContext) {
@@ -801,25 +1158,46 @@ public class CallKeepModule {
         return hasPermissions;
     }
 
+    /**
+     * Reads the cached state only, the main-thread paths call it. False until setup loaded it.
+     */
     private static boolean hasPhoneAccount() {
-        return isConnectionServiceAvailable() && telecomManager != null
-                && telecomManager.getPhoneAccount(handle) != null && telecomManager.getPhoneAccount(handle).isEnabled();
+        if (!isConnectionServiceAvailable() || telecomManager == null) {
+            return false;
+        }
+
+        Boolean enabled = phoneAccountEnabled;
+        return enabled != null && enabled;
+    }
+
+    /**
+     * Queries Telecom if the cached state is missing or stale. Must be called on the executor.
+     */
+    private static boolean loadPhoneAccountState() {
+        if (!isConnectionServiceAvailable() || telecomManager == null) {
+            return false;
+        }
+
+        Boolean enabled = phoneAccountEnabled;
+        return enabled != null && !phoneAccountStale ? enabled : refreshPhoneAccountState();
+    }
+
+    private static boolean refreshPhoneAccountState() {
+        if (!isConnectionServiceAvailable() || telecomManager == null) {
+            phoneAccountEnabled = null;
+            return false;
+        }
+
+        phoneAccountStale = false;
+        PhoneAccount account = telecomManager.getPhoneAccount(handle);
+        boolean enabled = account != null && account.isEnabled();
+        phoneAccountEnabled = enabled;
+        return enabled;
     }
 
     private void registerReceiver() {
         if (!isReceiverRegistered) {
-            IntentFilter intentFilter = new IntentFilter();
-            intentFilter.addAction(ACTION_END_CALL);
-            intentFilter.addAction(ACTION_ANSWER_CALL);
-            intentFilter.addAction(ACTION_MUTE_CALL);
-            intentFilter.addAction(ACTION_UNMUTE_CALL);
-            intentFilter.addAction(ACTION_DTMF_TONE);
-            intentFilter.addAction(ACTION_UNHOLD_CALL);
-            intentFilter.addAction(ACTION_HOLD_CALL);
-            intentFilter.addAction(ACTION_ONGOING_CALL);
-            intentFilter.addAction(ACTION_AUDIO_SESSION);
-            intentFilter.addAction(ACTION_CHECK_REACHABILITY);
-            LocalBroadcastManager.getInstance(this._context).registerReceiver(voiceBroadcastReceiver, intentFilter);
+            CallEventBus.register(voiceEventReceiver);
             isReceiverRegistered = true;
         }
     }
@@ -869,52 +1247,45 @@ public class CallKeepModule {
         }
     }
 
-    private class VoiceBroadcastReceiver extends BroadcastReceiver {
+    private class VoiceEventReceiver implements CallEventBus.Listener {
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onCallEvent(CallEvent event) {
+            CallMetrics.mark(event.uuid, CallMetrics.Stage.EVENT_RECEIVED);
             ConstraintsMap args = new ConstraintsMap();
-            HashMap<String, String> attributeMap = (HashMap<String, String>)intent.getSerializableExtra("attributeMap");
 
-            switch (intent.getAction()) {
+            switch (event.action) {
                 case ACTION_END_CALL:
-                    Log.d(TAG, "Tapped on End Call");
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
+                    CallKeepLog.d(TAG, "Tapped on End Call");
+                    _coalescer.endCall(event.uuid);
+                    args.putString("callUUID", event.uuid);
                     sendEventToFlutter("CallKeepPerformEndCallAction", args);
                     break;
                 case ACTION_ANSWER_CALL:
-                    Log.d(TAG, "Tapped on Answer");
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
+                    CallKeepLog.d(TAG, "Tapped on Answer");
+                    args.putString("callUUID", event.uuid);
                     sendEventToFlutter("CallKeepPerformAnswerCallAction", args);
                     break;
                 case ACTION_HOLD_CALL:
-                    args.putBoolean("hold", true);
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidToggleHoldAction", args);
+                    _coalescer.offer(event.uuid, EventCoalescer.Kind.HOLD, true);
                     break;
                 case ACTION_UNHOLD_CALL:
-                    args.putBoolean("hold", false);
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidToggleHoldAction", args);
+                    _coalescer.offer(event.uuid, EventCoalescer.Kind.HOLD, false);
                     break;
                 case ACTION_MUTE_CALL:
-                    args.putBoolean("muted", true);
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidPerformSetMutedCallAction", args);
+                    _coalescer.offer(event.uuid, EventCoalescer.Kind.MUTE, true);
                     break;
                 case ACTION_UNMUTE_CALL:
-                    args.putBoolean("muted", false);
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidPerformSetMutedCallAction", args);
+                    _coalescer.offer(event.uuid, EventCoalescer.Kind.MUTE, false);
                     break;
                 case ACTION_DTMF_TONE:
-                    args.putString("digits", attributeMap.get("DTMF"));
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
+                    args.putString("digits", event.dtmf);
+                    args.putString("callUUID", event.uuid);
                     sendEventToFlutter("CallKeepDidPerformDTMFAction", args);
                     break;
                 case ACTION_ONGOING_CALL:
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    args.putString("handle", attributeMap.get(EXTRA_CALL_NUMBER));
-                    args.putString("name", attributeMap.get(EXTRA_CALLER_NAME));
+                    args.putString("callUUID", event.uuid);
+                    args.putString("handle", event.number);
+                    args.putString("name", event.name);
                     sendEventToFlutter("CallKeepDidReceiveStartCallAction", args);
                     break;
                 case ACTION_AUDIO_SESSION:
@@ -923,17 +1294,31 @@ public class CallKeepModule {
                 case ACTION_CHECK_REACHABILITY:
                     sendEventToFlutter("CallKeepCheckReachability", args);
                     break;
-                case ACTION_WAKE_APP:
-                    Intent headlessIntent = new Intent(_context, CallKeepBackgroundMessagingService.class);
-                    headlessIntent.putExtra("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    headlessIntent.putExtra("name", attributeMap.get(EXTRA_CALLER_NAME));
-                    headlessIntent.putExtra("handle", attributeMap.get(EXTRA_CALL_NUMBER));
-                    Log.d(TAG, "wakeUpApplication: " + attributeMap.get(EXTRA_CALL_UUID) + ", number : " + attributeMap.get(EXTRA_CALL_NUMBER) + ", displayName:" + attributeMap.get(EXTRA_CALLER_NAME));
-
-                    ComponentName name = _context.startService(headlessIntent);
-                    if (name != null) {
-                        CallKeepBackgroundMessagingService.acquireWakeLockNow(_context);
+                case ACTION_CONFERENCE_CHANGED:
+                    args.merge(event.body);
+                    // Per-call states reported by the conference are derived on the Dart side
+                    ConstraintsArray disconnected = args.getArray("disconnected");
+                    for (int i = 0; disconnected != null && i < disconnected.size(); i++) {
+                        _coalescer.endCall(disconnected.getString(i));
+                    }
+                    ConstraintsArray members = args.getArray("members");
+                    for (int i = 0; members != null && i < members.size(); i++) {
+                        if (args.hasKey("hold")) {
+                            _coalescer.override(members.getString(i), EventCoalescer.Kind.HOLD, args.getBoolean("hold"));
+                        }
+                        if (args.hasKey("muted")) {
+                            _coalescer.override(members.getString(i), EventCoalescer.Kind.MUTE, args.getBoolean("muted"));
+                        }
                     }
+                    sendEventToFlutter("CallKeepDidChangeConference", args);
+                    break;
+                case ACTION_CALL_REMOVED:
+                    // Delivers the held back toggles of the call, then forgets it
+                    _coalescer.endCall(event.uuid);
+                    break;
+                case ACTION_WAKE_APP:
+                    // Ignored, as when the receiver filtered it out: VoiceConnectionService
+                    // wakes the application itself
                     break;
             }
         }
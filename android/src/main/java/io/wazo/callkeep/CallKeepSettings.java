@@ -0,0 +1,60 @@
+package io.wazo.callkeep;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Immutable, typed view of the Android setup options.
+ *
+ * Compiled once in setup so later calls read primitive fields instead of probing the raw options
+ * map, and the PhoneAccount icon resource is resolved only once.
+ */
+public final class CallKeepSettings {
+    public static final CallKeepSettings DEFAULT = new CallKeepSettings(new ConstraintsMap(), null);
+
+    @Nullable public final String imageName;
+    // 0 when imageName is not set or does not resolve to a drawable
+    public final int imageResId;
+    public final boolean batchEvents;
+    public final int batchWindowMs;
+    public final boolean compactCodec;
+    public final double reachabilityPercentile;
+    public final long reachabilityTimeoutFloorMs;
+    public final long reachabilityTimeoutCeilingMs;
+    // Dart callback handles of the headless engine entrypoint and of the app handler, 0 when unset
+    public final long backgroundDispatcherHandle;
+    public final long backgroundHandlerHandle;
+    public final long wakeLockTimeoutMs;
+    // Mute and hold toggles stable for less than this are collapsed, 0 delivers each of them
+    public final int coalesceWindowMs;
+    // android.util.Log priority, or CallKeepLog.NONE
+    public final int logLevel;
+
+    private CallKeepSettings(ConstraintsMap options, @Nullable Context context) {
+        imageName = options.getString("imageName", null);
+        imageResId = imageName != null && context != null
+                ? context.getResources().getIdentifier(imageName, "drawable", context.getPackageName())
+                : 0;
+        batchEvents = options.getBoolean("batchEvents", false);
+        batchWindowMs = options.getInt("batchWindowMs", 0);
+        compactCodec = options.getBoolean("compactCodec", false);
+        reachabilityPercentile = options.getDouble("reachabilityPercentile", ReachabilityEstimator.DEFAULT_PERCENTILE);
+        reachabilityTimeoutFloorMs = options.getInt("reachabilityTimeoutFloorMs", (int) ReachabilityEstimator.DEFAULT_FLOOR_MS);
+        reachabilityTimeoutCeilingMs = options.getInt("reachabilityTimeoutCeilingMs", (int) ReachabilityEstimator.DEFAULT_CEILING_MS);
+        backgroundDispatcherHandle = options.getLong("backgroundDispatcherHandle", 0);
+        backgroundHandlerHandle = options.getLong("backgroundHandlerHandle", 0);
+        wakeLockTimeoutMs = options.getLong("wakeLockTimeoutMs", WakeLockManager.DEFAULT_TIMEOUT_MS);
+        coalesceWindowMs = options.getInt("coalesceWindowMs", 0);
+        logLevel = CallKeepLog.parseLevel(options.getString("logLevel", null), CallKeepLog.DEFAULT_LEVEL);
+    }
+
+    public static CallKeepSettings fromOptions(@Nullable ConstraintsMap options, Context context) {
+        if (options == null) {
+            return DEFAULT;
+        }
+        return new CallKeepSettings(options, context);
+    }
+}
@@ -0,0 +1,119 @@
+package io.wazo.callkeep;
+
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Per-call latency timeline of the incoming call path.
+ *
+ * A timeline starts when displayIncomingCall is received for a UUID, before it is queued. Each later stage is timestamped
+ * once per call with a monotonic clock, and its latency from the start of the timeline is
+ * aggregated into one histogram per stage.
+ */
+public class CallMetrics {
+    public enum Stage {
+        DISPLAY_INCOMING_CALL("displayIncomingCall"),
+        ADD_NEW_INCOMING_CALL("addNewIncomingCall"),
+        CREATE_INCOMING_CONNECTION("onCreateIncomingConnection"),
+        SET_RINGING("setRinging"),
+        ANSWER("onAnswer"),
+        EVENT_RECEIVED("eventReceived"),
+        EVENT_SENT("sendEventToFlutter");
+
+        final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    // Timelines of calls that never reach deinitConnection must not accumulate forever
+    private static final int MAX_TIMELINES = 256;
+    private static final Stage[] STAGES = Stage.values();
+
+    private static final ConcurrentHashMap<String, long[]> timelines = new ConcurrentHashMap<>();
+    private static final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+
+    static {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public static void mark(@Nullable String uuid, Stage stage) {
+        if (uuid == null) {
+            return;
+        }
+        long now = System.nanoTime();
+
+        long[] timeline = timelines.get(uuid);
+        if (timeline == null) {
+            // Only calls going through displayIncomingCall are tracked
+            if (stage != Stage.DISPLAY_INCOMING_CALL) {
+                return;
+            }
+            if (timelines.size() >= MAX_TIMELINES) {
+                evictOldest();
+            }
+            long[] created = new long[STAGES.length + 1];
+            // Slot 0 holds the start of the timeline
+            created[0] = now;
+            timeline = timelines.putIfAbsent(uuid, created);
+            if (timeline == null) {
+                timeline = created;
+            }
+        }
+
+        synchronized (timeline) {
+            int slot = stage.ordinal() + 1;
+            if (timeline[slot] != 0) {
+                return;
+            }
+            timeline[slot] = now;
+        }
+        histograms[stage.ordinal()].record(now - timeline[0]);
+    }
+
+    /*
+     * Only runs once MAX_TIMELINES calls leaked, the timelines of the live calls are kept
+     */
+    private static void evictOldest() {
+        String oldest = null;
+        long oldestStart = Long.MAX_VALUE;
+        for (Map.Entry<String, long[]> entry : timelines.entrySet()) {
+            long start = entry.getValue()[0];
+            if (oldest == null || start - oldestStart < 0) {
+                oldest = entry.getKey();
+                oldestStart = start;
+            }
+        }
+        if (oldest != null) {
+            timelines.remove(oldest);
+        }
+    }
+
+    public static void clear(@Nullable String uuid) {
+        if (uuid != null) {
+            timelines.remove(uuid);
+        }
+    }
+
+    public static ConstraintsMap toConstraintsMap() {
+        ConstraintsMap stages = new ConstraintsMap();
+        for (Stage stage : STAGES) {
+            stages.putMap(stage.label, histograms[stage.ordinal()].toConstraintsMap().toMap());
+        }
+        return stages;
+    }
+
+    public static void reset() {
+        timelines.clear();
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+}
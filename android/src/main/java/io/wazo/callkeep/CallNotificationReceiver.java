@@ -5,12 +5,9 @@ import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.os.Bundle;
-import android.os.Handler;
 import android.view.WindowManager;
 
 import androidx.annotation.Nullable;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import java.util.HashMap;
 
@@ -30,25 +27,11 @@ public class CallNotificationReceiver extends BroadcastReceiver {
                     WindowManager.LayoutParams.FLAG_TURN_SCREEN_ON);
 
             appContext.startActivity(launchIntent);
+            sendCallRequestToActivity(action, handle);
         }
-
-        sendCallRequestToActivity(context, action, handle);
     }
 
-    private void sendCallRequestToActivity(final Context context, final String action, @Nullable final HashMap attributeMap) {
-        final Handler handler = new Handler();
-
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                Intent intent = new Intent(action);
-                if (attributeMap != null) {
-                    Bundle extras = new Bundle();
-                    extras.putSerializable("attributeMap", attributeMap);
-                    intent.putExtras(extras);
-                }
-                LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
-            }
-        });
+    private void sendCallRequestToActivity(final String action, @Nullable final HashMap<String, String> attributeMap) {
+        CallEventBus.post(CallEvent.fromAttributes(action, attributeMap));
     }
 }
@@ -0,0 +1,196 @@
+package io.wazo.callkeep;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Thread-safe registry of the live connections, indexed by call UUID.
+ *
+ * Lookups never block. Mutations are atomic and publish a new immutable snapshot, so callers
+ * iterating {@link #snapshot()} can end or remove calls without risking a
+ * ConcurrentModificationException.
+ *
+ * The registry also maintains the conferenceable relationships between calls: every registered
+ * connection is conferenceable with every other one. Adding or removing a call updates one link per
+ * peer under the lock. The lists of the affected connections are handed to Telecom once the lock is
+ * released, so its listeners never run under it. Publications are coalesced: a single pass runs at a
+ * time and covers the changes made meanwhile by other threads, and it publishes each conference
+ * once, however many of its members changed.
+ *
+ * Once a {@link CallJournal} is attached, registrations are journaled so that the calls lost with
+ * a previous process can be found again.
+ */
+public class CallRegistry {
+    private static final String TAG = "FLT:CallRegistry";
+
+    private final ConcurrentHashMap<String, VoiceConnection> connections = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private volatile List<VoiceConnection> snapshot = Collections.emptyList();
+    // Set by the thread running a publication pass
+    private final AtomicBoolean publishing = new AtomicBoolean();
+    private volatile boolean publishPending = false;
+    @Nullable
+    private CallJournal journal = null;
+
+    @Nullable
+    public VoiceConnection get(@Nullable String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        return connections.get(uuid);
+    }
+
+    public boolean contains(@Nullable String uuid) {
+        return uuid != null && connections.containsKey(uuid);
+    }
+
+    public int size() {
+        return snapshot.size();
+    }
+
+    public boolean isEmpty() {
+        return snapshot.isEmpty();
+    }
+
+    /**
+     * Registers a connection, replacing any previous connection with the same UUID. A connection
+     * without UUID cannot be looked up and is not registered.
+     *
+     * @return the replaced connection, or null
+     */
+    @Nullable
+    public VoiceConnection put(@Nullable String uuid, VoiceConnection connection) {
+        if (uuid == null) {
+            CallKeepLog.w(TAG, "Connection without UUID not registered");
+            return null;
+        }
+        VoiceConnection previous;
+        synchronized (writeLock) {
+            previous = connections.put(uuid, connection);
+            if (previous != null) {
+                unlinkConferenceable(previous);
+            }
+            if (journal != null) {
+                journal.recordAdded(uuid);
+            }
+            linkConferenceable(connection);
+            publishSnapshot();
+        }
+        publishConferenceables();
+        return previous;
+    }
+
+    /**
+     * Removes the connection registered for the given UUID.
+     *
+     * @return the removed connection, or null if none was registered
+     */
+    @Nullable
+    public VoiceConnection remove(@Nullable String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        VoiceConnection removed;
+        synchronized (writeLock) {
+            removed = connections.remove(uuid);
+            if (removed == null) {
+                return null;
+            }
+            unlinkConferenceable(removed);
+            publishSnapshot();
+            if (journal != null) {
+                journal.recordRemoved(uuid);
+            }
+        }
+        publishConferenceables();
+        return removed;
+    }
+
+    /**
+     * Attaches the journal, which may be opened after the first registrations: the connections
+     * registered meanwhile are journaled now.
+     */
+    void attachJournal(@Nullable CallJournal journal) {
+        synchronized (writeLock) {
+            this.journal = journal;
+            if (journal != null) {
+                for (String uuid : connections.keySet()) {
+                    journal.recordAdded(uuid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reconciles the attached journal with the registered connections.
+     *
+     * @return the UUIDs of the journaled calls that are not registered, lost with a previous process
+     */
+    public List<String> recoverLostCalls() {
+        synchronized (writeLock) {
+            if (journal == null) {
+                return Collections.emptyList();
+            }
+            return journal.reconcile(connections.keySet());
+        }
+    }
+
+    /**
+     * @return an immutable point-in-time view of the registered connections
+     */
+    public List<VoiceConnection> snapshot() {
+        return snapshot;
+    }
+
+    private void linkConferenceable(VoiceConnection connection) {
+        for (VoiceConnection peer : connections.values()) {
+            if (peer != connection) {
+                peer.addConferenceable(connection);
+                connection.addConferenceable(peer);
+            }
+        }
+    }
+
+    private void unlinkConferenceable(VoiceConnection connection) {
+        for (VoiceConnection peer : connections.values()) {
+            if (peer != connection) {
+                peer.removeConferenceable(connection);
+            }
+        }
+        connection.clearConferenceables();
+    }
+
+    /*
+     * Every registered connection is linked with the added or removed one, only those whose links
+     * changed publish them. A caller finding a pass running leaves its changes to it.
+     */
+    private void publishConferenceables() {
+        publishPending = true;
+        while (publishPending && publishing.compareAndSet(false, true)) {
+            try {
+                publishPending = false;
+                LinkedHashSet<VoiceConference> conferences = new LinkedHashSet<>();
+                for (VoiceConnection connection : snapshot) {
+                    if (connection.publishConferenceables() && connection.getConference() instanceof VoiceConference) {
+                        conferences.add((VoiceConference) connection.getConference());
+                    }
+                }
+                for (VoiceConference conference : conferences) {
+                    conference.publishConferenceables();
+                }
+            } finally {
+                publishing.set(false);
+            }
+        }
+    }
+
+    private void publishSnapshot() {
+        snapshot = Collections.unmodifiableList(new ArrayList<>(connections.values()));
+    }
+}
@@ -0,0 +1,67 @@
+package io.wazo.callkeep;
+
+import android.os.Bundle;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.wazo.callkeep.Constants.*;
+
+/**
+ * Read-only, lazily converted view over the extras of a connection request.
+ *
+ * A key is only read from the Bundle and converted to a String when a consumer asks for it, and
+ * then at most once. Local overrides are kept in the view and never written back to the Bundle.
+ */
+public class ConnectionExtras {
+    @Nullable private final Bundle bundle;
+    private final HashMap<String, String> values = new HashMap<>(4);
+
+    public ConnectionExtras(@Nullable Bundle bundle) {
+        this.bundle = bundle;
+    }
+
+    public static ConnectionExtras fromMap(Map<String, String> attributes) {
+        ConnectionExtras extras = new ConnectionExtras(null);
+        extras.values.putAll(attributes);
+        return extras;
+    }
+
+    @Nullable
+    public synchronized String get(String key) {
+        if (values.containsKey(key)) {
+            return values.get(key);
+        }
+
+        String value = null;
+        if (bundle != null) {
+            Object raw = bundle.get(key);
+            if (raw != null) {
+                value = raw.toString();
+            }
+        }
+        values.put(key, value);
+        return value;
+    }
+
+    public synchronized void put(String key, @Nullable String value) {
+        values.put(key, value);
+    }
+
+    @Nullable
+    public String getUuid() {
+        return get(EXTRA_CALL_UUID);
+    }
+
+    @Nullable
+    public String getNumber() {
+        return get(EXTRA_CALL_NUMBER);
+    }
+
+    @Nullable
+    public String getName() {
+        return get(EXTRA_CALLER_NAME);
+    }
+}
@@ -3,7 +3,10 @@ package io.wazo.callkeep;
 public class Constants {
     public static final String ACTION_ANSWER_CALL = "ACTION_ANSWER_CALL";
     public static final String ACTION_AUDIO_SESSION = "ACTION_AUDIO_SESSION";
+    // Internal, a call left the registry however it ended
+    public static final String ACTION_CALL_REMOVED = "ACTION_CALL_REMOVED";
     public static final String ACTION_CHECK_REACHABILITY = "ACTION_CHECK_REACHABILITY";
+    public static final String ACTION_CONFERENCE_CHANGED = "ACTION_CONFERENCE_CHANGED";
     public static final String ACTION_DTMF_TONE = "ACTION_DTMF_TONE";
     public static final String ACTION_END_CALL = "ACTION_END_CALL";
     public static final String ACTION_HOLD_CALL = "ACTION_HOLD_CALL";
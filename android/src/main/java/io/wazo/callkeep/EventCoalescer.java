@@ -0,0 +1,227 @@
+package io.wazo.callkeep;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Collapses mute and hold toggles of a call into their final state.
+ *
+ * Headsets, car kits and conference merges can flip these states several times within a few tens
+ * of milliseconds. A toggle is held back until its state has been stable for the window, then only
+ * the final state is delivered, and only if it differs from the state last delivered for the call.
+ * Every toggle that is not delivered is counted as suppressed.
+ *
+ * A held back toggle is delivered ahead of the end of its call. With a window of 0 every toggle is
+ * delivered immediately, as it was raised. All methods must be called on the main thread.
+ */
+class EventCoalescer {
+    interface Sink {
+        void deliver(String eventName, ConstraintsMap args);
+    }
+
+    enum Kind {
+        MUTE("CallKeepDidPerformSetMutedCallAction", "muted"),
+        HOLD("CallKeepDidToggleHoldAction", "hold");
+
+        final String eventName;
+        final String argument;
+
+        Kind(String eventName, String argument) {
+            this.eventName = eventName;
+            this.argument = argument;
+        }
+    }
+
+    interface Scheduler {
+        void postDelayed(Runnable task, long delayMs);
+
+        void cancel(Runnable task);
+    }
+
+    private final Scheduler scheduler;
+    private final Sink sink;
+    private final HashMap<String, Pending> pending = new HashMap<>();
+    // Last state delivered per call and kind
+    private final HashMap<String, Boolean> delivered = new HashMap<>();
+    private int windowMs = 0;
+
+    private int offered = 0;
+    private int deliveredCount = 0;
+    private int suppressed = 0;
+
+    EventCoalescer(Sink sink) {
+        this(sink, new Scheduler() {
+            private final Handler handler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public void postDelayed(Runnable task, long delayMs) {
+                handler.postDelayed(task, delayMs);
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                handler.removeCallbacks(task);
+            }
+        });
+    }
+
+    /**
+     * @param scheduler runs the held back toggles on the main thread, replaced in tests
+     */
+    EventCoalescer(Sink sink, Scheduler scheduler) {
+        this.sink = sink;
+        this.scheduler = scheduler;
+    }
+
+    void configure(int windowMs) {
+        this.windowMs = Math.max(0, windowMs);
+        if (this.windowMs == 0) {
+            flushAll();
+        }
+    }
+
+    void offer(String uuid, Kind kind, boolean value) {
+        offered++;
+        String key = key(uuid, kind);
+        if (windowMs == 0) {
+            send(key, uuid, kind, value);
+            return;
+        }
+
+        Pending entry = pending.get(key);
+        if (entry != null) {
+            // Superseded by this toggle
+            suppressed++;
+            entry.value = value;
+            scheduler.cancel(entry);
+        } else {
+            entry = new Pending(key, uuid, kind, value);
+            pending.put(key, entry);
+        }
+        scheduler.postDelayed(entry, windowMs);
+    }
+
+    /**
+     * Records a state delivered by other means, such as a conference change. It supersedes the
+     * toggle held back for the call.
+     */
+    void override(String uuid, Kind kind, boolean value) {
+        String key = key(uuid, kind);
+        Pending entry = pending.remove(key);
+        if (entry != null) {
+            scheduler.cancel(entry);
+            suppressed++;
+        }
+        delivered.put(key, value);
+    }
+
+    /**
+     * Delivers the toggles held back for the call right away.
+     */
+    void flush(String uuid) {
+        for (Kind kind : Kind.values()) {
+            String key = key(uuid, kind);
+            Pending entry = pending.remove(key);
+            if (entry != null) {
+                scheduler.cancel(entry);
+                deliver(key, uuid, kind, entry.value);
+            }
+        }
+    }
+
+    /**
+     * Delivers the toggles held back for the call, before its end is reported, and forgets it.
+     */
+    void endCall(String uuid) {
+        flush(uuid);
+        for (Kind kind : Kind.values()) {
+            delivered.remove(key(uuid, kind));
+        }
+    }
+
+    /**
+     * Drops everything held back, when the module is disposed.
+     */
+    void clear() {
+        for (Pending entry : pending.values()) {
+            scheduler.cancel(entry);
+        }
+        pending.clear();
+        delivered.clear();
+    }
+
+    ConstraintsMap toConstraintsMap() {
+        ConstraintsMap metrics = new ConstraintsMap();
+        metrics.putInt("windowMs", windowMs);
+        metrics.putInt("pending", pending.size());
+        metrics.putInt("offered", offered);
+        metrics.putInt("delivered", deliveredCount);
+        metrics.putInt("suppressed", suppressed);
+        return metrics;
+    }
+
+    void resetMetrics() {
+        offered = 0;
+        deliveredCount = 0;
+        suppressed = 0;
+    }
+
+    private void flushAll() {
+        Iterator<Map.Entry<String, Pending>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Pending entry = iterator.next().getValue();
+            iterator.remove();
+            scheduler.cancel(entry);
+            deliver(entry.key, entry.uuid, entry.kind, entry.value);
+        }
+    }
+
+    private void deliver(String key, String uuid, Kind kind, boolean value) {
+        Boolean last = delivered.get(key);
+        if (last != null && last == value) {
+            // Toggled back to the state the app already knows
+            suppressed++;
+            return;
+        }
+        send(key, uuid, kind, value);
+    }
+
+    private void send(String key, String uuid, Kind kind, boolean value) {
+        delivered.put(key, value);
+        deliveredCount++;
+        ConstraintsMap args = new ConstraintsMap();
+        args.putBoolean(kind.argument, value);
+        args.putString("callUUID", uuid);
+        sink.deliver(kind.eventName, args);
+    }
+
+    private static String key(String uuid, Kind kind) {
+        return kind.ordinal() + uuid;
+    }
+
+    private class Pending implements Runnable {
+        final String key;
+        final String uuid;
+        final Kind kind;
+        boolean value;
+
+        Pending(String key, String uuid, Kind kind, boolean value) {
+            this.key = key;
+            this.uuid = uuid;
+            this.kind = kind;
+            this.value = value;
+        }
+
+        @Override
+        public void run() {
+            pending.remove(key);
+            deliver(key, uuid, kind, value);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package io.wazo.callkeep;
+
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Fixed-size ring of the last call actions and connection state transitions, dumped on demand to
+ * attach an exact timeline to an incident.
+ *
+ * The ring is allocated once. Recording claims a slot from a shared cursor and fills it with
+ * volatile stores, it neither allocates nor locks. Each slot is stamped with its sequence number
+ * once written, so a dump skips the slots being written or overwritten while it reads them.
+ */
+public final class FlightRecorder {
+    // Commands received from the app
+    public static final int DISPLAY_INCOMING_CALL = 1;
+    public static final int ANSWER_INCOMING_CALL = 2;
+    public static final int START_CALL = 3;
+    public static final int END_CALL = 4;
+    public static final int END_ALL_CALLS = 5;
+    public static final int REJECT_CALL = 6;
+    public static final int SET_ON_HOLD = 7;
+    public static final int SET_MUTED = 8;
+    public static final int SEND_DTMF = 9;
+    public static final int REPORT_END_CALL = 10;
+    public static final int SET_CURRENT_CALL_ACTIVE = 11;
+    public static final int UPDATE_DISPLAY = 12;
+    // Connection transitions
+    public static final int CONNECTION_CREATED = 13;
+    public static final int CONNECTION_FAILED = 14;
+    public static final int ANSWERED = 15;
+    public static final int DISCONNECTED = 16;
+    public static final int ABORTED = 17;
+    public static final int REJECTED = 18;
+    public static final int HELD = 19;
+    public static final int UNHELD = 20;
+    public static final int MUTED = 21;
+    public static final int DTMF = 22;
+    public static final int REMOVED = 23;
+    public static final int CONFERENCE_JOINED = 24;
+    public static final int CONFERENCE_LEFT = 25;
+
+    private static final String[] NAMES = {
+            null,
+            "displayIncomingCall", "answerIncomingCall", "startCall", "endCall", "endAllCalls",
+            "rejectCall", "setOnHold", "setMutedCall", "sendDTMF", "reportEndCallWithUUID",
+            "setCurrentCallActive", "updateDisplay",
+            "connectionCreated", "connectionFailed", "answered", "disconnected", "aborted",
+            "rejected", "held", "unheld", "muted", "dtmf", "removed", "conferenceJoined",
+            "conferenceLeft",
+    };
+
+    // Power of two, slots are indexed by the low bits of their sequence number
+    public static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+    // Per slot: sequence + 1 (0 while being written), elapsedRealtimeNanos, action, payload
+    private static final int FIELDS = 4;
+
+    private static final AtomicLongArray slots = new AtomicLongArray(CAPACITY * FIELDS);
+    private static final AtomicReferenceArray<String> uuids = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong cursor = new AtomicLong();
+
+    public static void record(int action, @Nullable String uuid) {
+        record(action, uuid, 0);
+    }
+
+    /**
+     * @param payload action specific value: hold or mute state, DTMF digit, disconnect cause...
+     */
+    public static void record(int action, @Nullable String uuid, long payload) {
+        long sequence = cursor.getAndIncrement();
+        int slot = (int) (sequence & MASK);
+        int base = slot * FIELDS;
+
+        // Volatile stores, unlike lazySet ones, cannot become visible before the slot is unstamped
+        slots.set(base, 0);
+        slots.set(base + 1, SystemClock.elapsedRealtimeNanos());
+        slots.set(base + 2, action);
+        slots.set(base + 3, payload);
+        uuids.set(slot, uuid);
+        // Publishes the slot
+        slots.set(base, sequence + 1);
+    }
+
+    /**
+     * @return the recorded entries, oldest first, along with the clocks needed to date them
+     */
+    public static ConstraintsMap dump() {
+        long end = cursor.get();
+        long start = Math.max(0, end - CAPACITY);
+
+        ArrayList<Object> entries = new ArrayList<>();
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence & MASK);
+            int base = slot * FIELDS;
+            long stamp = slots.get(base);
+            if (stamp != sequence + 1) {
+                continue;
+            }
+            long time = slots.get(base + 1);
+            int action = (int) slots.get(base + 2);
+            long payload = slots.get(base + 3);
+            String uuid = uuids.get(slot);
+            if (slots.get(base) != stamp) {
+                // Overwritten while being read
+                continue;
+            }
+
+            ConstraintsMap entry = new ConstraintsMap();
+            entry.putLong("time", time);
+            entry.putString("action", action > 0 && action < NAMES.length ? NAMES[action] : Integer.toString(action));
+            entry.putString("uuid", uuid);
+            entry.putLong("payload", payload);
+            entries.add(entry.toMap());
+        }
+
+        ConstraintsMap dump = new ConstraintsMap();
+        dump.putLong("elapsedRealtimeNanos", SystemClock.elapsedRealtimeNanos());
+        dump.putLong("currentTimeMillis", System.currentTimeMillis());
+        dump.putInt("capacity", CAPACITY);
+        dump.putLong("recorded", end);
+        dump.putArray("entries", entries);
+        return dump;
+    }
+}
@@ -0,0 +1,104 @@
+package io.wazo.callkeep;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+
+import androidx.annotation.Nullable;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleOwner;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Process-wide foreground state, driven by activity lifecycle callbacks.
+ *
+ * Registered when the plugin is attached to an activity. That activity may already be started, in
+ * which case its start callback has been missed: it is counted as started from its lifecycle state,
+ * or, when it does not expose one, from being attached. Until then, the attached activity is used as
+ * a best-effort signal.
+ */
+public class ForegroundTracker implements Application.ActivityLifecycleCallbacks {
+    private static final ForegroundTracker INSTANCE = new ForegroundTracker();
+    // Started activities, tracked by identity so the seeded one is never counted twice
+    private static final Set<Activity> startedActivities = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<Activity, Boolean>()));
+    private static volatile boolean activityAttached = false;
+    private static volatile Application trackedApplication = null;
+
+    private ForegroundTracker() {
+    }
+
+    /**
+     * Called when the plugin is attached to, or detached from, an activity.
+     */
+    public static synchronized void setActivity(@Nullable Activity activity) {
+        activityAttached = activity != null;
+        if (activity == null) {
+            return;
+        }
+
+        Application application = activity.getApplication();
+        if (application == null) {
+            return;
+        }
+        if (application != trackedApplication) {
+            if (trackedApplication != null) {
+                trackedApplication.unregisterActivityLifecycleCallbacks(INSTANCE);
+            }
+            application.registerActivityLifecycleCallbacks(INSTANCE);
+            trackedApplication = application;
+        }
+        if (isStarted(activity)) {
+            startedActivities.add(activity);
+        }
+    }
+
+    public static boolean isForeground() {
+        if (trackedApplication == null) {
+            return activityAttached;
+        }
+        return !startedActivities.isEmpty();
+    }
+
+    private static boolean isStarted(Activity activity) {
+        if (activity instanceof LifecycleOwner) {
+            Lifecycle lifecycle = ((LifecycleOwner) activity).getLifecycle();
+            return lifecycle.getCurrentState().isAtLeast(Lifecycle.State.STARTED);
+        }
+        return !activity.isFinishing();
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+        startedActivities.add(activity);
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+        startedActivities.remove(activity);
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+        startedActivities.remove(activity);
+    }
+}
@@ -0,0 +1,300 @@
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.embedding.engine.FlutterEngineCache;
+import io.flutter.embedding.engine.dart.DartExecutor;
+import io.flutter.plugin.common.MethodChannel;
+import io.flutter.view.FlutterCallbackInformation;
+import io.flutter.view.FlutterMain;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Headless Flutter engine running the Dart background handler registered in setup. It wakes the
+ * application up when a call is placed from the native dialer or received while the app is not
+ * running.
+ *
+ * The engine is kept in the FlutterEngineCache while it is running. The ConnectionService pre-warms it
+ * once an outgoing call waits for the application to answer the reachability check, so that the
+ * wakeup following a timeout usually only costs one method call into a running isolate. Pre-warming
+ * is skipped while an engine of the application runs the plugin. The Flutter initialization
+ * completes asynchronously, wakeups arriving before the Dart dispatcher is ready are queued and
+ * dropped after WAKEUP_TIMEOUT_MS. The engine is destroyed once idle for IDLE_TIMEOUT_MS.
+ *
+ * All methods must be called on the main thread.
+ */
+class HeadlessEngine {
+    private static final String TAG = "FLT:HeadlessEngine";
+    static final String ENGINE_ID = "callkeep_background";
+    private static final String CHANNEL = "FlutterCallKeep.Background";
+    // Handles survive the process, the app is not running when it must be woken up
+    private static final String PREFERENCES = "io.wazo.callkeep";
+    private static final String DISPATCHER_HANDLE = "backgroundDispatcherHandle";
+    private static final String HANDLER_HANDLE = "backgroundHandlerHandle";
+
+    private static FlutterEngine engine = null;
+    private static MethodChannel channel = null;
+    private static boolean ready = false;
+    // Set while the Flutter initialization completes, before the engine is created
+    private static boolean initializing = false;
+    private static final ArrayList<Wakeup> pendingWakeups = new ArrayList<>();
+    // Set while the engine is created, the plugin instances attached meanwhile belong to it
+    private static boolean starting = false;
+    // Plugin instances attached to the engines of the application
+    private static int appEngines = 0;
+
+    // Without calls nor pending wakeups for this long, the engine is destroyed
+    private static final long IDLE_TIMEOUT_MS = 60 * 1000;
+    // Queued wakeups are dropped after this long, the dispatcher may never become ready
+    private static final long WAKEUP_TIMEOUT_MS = 30 * 1000;
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final Runnable destroyIfIdle = new Runnable() {
+        @Override
+        public void run() {
+            destroyIfIdle();
+        }
+    };
+
+    // Wakeup to first Dart handler
+    private static final LatencyHistogram wakeupLatency = new LatencyHistogram();
+    private static final AtomicInteger warmWakeups = new AtomicInteger();
+    private static final AtomicInteger coldWakeups = new AtomicInteger();
+
+    static void setCallbackHandles(Context context, long dispatcherHandle, long handlerHandle) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        if (preferences.getLong(DISPATCHER_HANDLE, 0) == dispatcherHandle
+                && preferences.getLong(HANDLER_HANDLE, 0) == handlerHandle) {
+            return;
+        }
+        preferences.edit()
+                .putLong(DISPATCHER_HANDLE, dispatcherHandle)
+                .putLong(HANDLER_HANDLE, handlerHandle)
+                .apply();
+    }
+
+    /**
+     * Called when a plugin instance is attached to an engine.
+     *
+     * @return true if the engine is the background one
+     */
+    static boolean onPluginAttached() {
+        if (starting) {
+            return true;
+        }
+        appEngines++;
+        return false;
+    }
+
+    static void onPluginDetached(boolean background) {
+        if (!background) {
+            appEngines--;
+        }
+    }
+
+    /**
+     * Starts the engine ahead of a wakeup, if a background handler has been registered and the
+     * application has no running engine.
+     */
+    static void prewarm(Context context) {
+        if (appEngines > 0) {
+            return;
+        }
+        if (ensureEngine(context.getApplicationContext())) {
+            scheduleIdleShutdown();
+        }
+    }
+
+    /**
+     * Called when the last call has ended.
+     */
+    static void onCallsEnded() {
+        scheduleIdleShutdown();
+    }
+
+    /**
+     * Runs the Dart background handler for the given call.
+     *
+     * @param requestedAtNanos elapsedRealtimeNanos() when the wakeup was requested
+     * @return false if no background handler has been registered
+     */
+    static boolean wakeUp(Context context, String uuid, String number, String name, long requestedAtNanos) {
+        boolean warm = engine != null;
+        if (!ensureEngine(context.getApplicationContext())) {
+            return false;
+        }
+        (warm ? warmWakeups : coldWakeups).incrementAndGet();
+
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        ConstraintsMap arguments = new ConstraintsMap();
+        arguments.putLong("callbackHandle", preferences.getLong(HANDLER_HANDLE, 0));
+        arguments.putString("callUUID", uuid);
+        arguments.putString("handle", number);
+        arguments.putString("name", name);
+        Wakeup wakeup = new Wakeup(arguments, requestedAtNanos);
+
+        if (ready) {
+            dispatch(wakeup);
+        } else {
+            pendingWakeups.add(wakeup);
+        }
+        scheduleIdleShutdown();
+        return true;
+    }
+
+    static ConstraintsMap toConstraintsMap() {
+        ConstraintsMap metrics = wakeupLatency.toConstraintsMap();
+        metrics.putInt("warm", warmWakeups.get());
+        metrics.putInt("cold", coldWakeups.get());
+        metrics.putBoolean("running", engine != null);
+        return metrics;
+    }
+
+    static void resetMetrics() {
+        wakeupLatency.reset();
+        warmWakeups.set(0);
+        coldWakeups.set(0);
+    }
+
+    /**
+     * Starts the engine once the Flutter initialization has completed, without waiting for it.
+     *
+     * @return false if no background handler has been registered
+     */
+    private static boolean ensureEngine(final Context context) {
+        if (engine != null || initializing) {
+            return true;
+        }
+
+        final long dispatcherHandle = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE)
+                .getLong(DISPATCHER_HANDLE, 0);
+        if (dispatcherHandle == 0) {
+            return false;
+        }
+
+        initializing = true;
+        // Only schedules the extraction of the resources, which completes on a background thread
+        FlutterMain.startInitialization(context);
+        FlutterMain.ensureInitializationCompleteAsync(context, null, handler, () -> {
+            initializing = false;
+            startEngine(context, dispatcherHandle);
+        });
+        return true;
+    }
+
+    private static void startEngine(Context context, long dispatcherHandle) {
+        FlutterCallbackInformation callbackInformation =
+                FlutterCallbackInformation.lookupCallbackInformation(dispatcherHandle);
+        if (callbackInformation == null) {
+            CallKeepLog.w(TAG, "Background dispatcher not found, setup has to be called again, {} wakeups dropped",
+                    pendingWakeups.size());
+            pendingWakeups.clear();
+            return;
+        }
+
+        starting = true;
+        try {
+            engine = new FlutterEngine(context);
+        } finally {
+            starting = false;
+        }
+        channel = new MethodChannel(engine.getDartExecutor(), CHANNEL);
+        channel.setMethodCallHandler((call, result) -> {
+            if ("backgroundReady".equals(call.method)) {
+                onReady();
+                result.success(null);
+            } else {
+                result.notImplemented();
+            }
+        });
+        engine.getDartExecutor().executeDartCallback(new DartExecutor.DartCallback(
+                context.getAssets(), FlutterMain.findAppBundlePath(), callbackInformation));
+        FlutterEngineCache.getInstance().put(ENGINE_ID, engine);
+        CallKeepLog.d(TAG, "Background engine started");
+    }
+
+    private static void scheduleIdleShutdown() {
+        if (engine == null && !initializing) {
+            return;
+        }
+        handler.removeCallbacks(destroyIfIdle);
+        handler.postDelayed(destroyIfIdle, IDLE_TIMEOUT_MS);
+    }
+
+    private static void destroyIfIdle() {
+        expireWakeups();
+        if (initializing || !pendingWakeups.isEmpty() || !VoiceConnectionService.currentConnections.isEmpty()) {
+            scheduleIdleShutdown();
+            return;
+        }
+        if (engine == null) {
+            return;
+        }
+        FlutterEngineCache.getInstance().remove(ENGINE_ID);
+        channel.setMethodCallHandler(null);
+        engine.destroy();
+        engine = null;
+        channel = null;
+        ready = false;
+        CallKeepLog.d(TAG, "Background engine destroyed");
+    }
+
+    private static void expireWakeups() {
+        long expiredBefore = SystemClock.elapsedRealtimeNanos() - WAKEUP_TIMEOUT_MS * 1000000;
+        Iterator<Wakeup> iterator = pendingWakeups.iterator();
+        while (iterator.hasNext()) {
+            Wakeup wakeup = iterator.next();
+            if (wakeup.requestedAtNanos < expiredBefore) {
+                CallKeepLog.w(TAG, "Background dispatcher not ready, wakeup dropped for {}",
+                        wakeup.arguments.getString("callUUID"));
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void onReady() {
+        ready = true;
+        for (Wakeup wakeup : pendingWakeups) {
+            dispatch(wakeup);
+        }
+        pendingWakeups.clear();
+    }
+
+    private static void dispatch(final Wakeup wakeup) {
+        // Dart replies as soon as the handler has been called
+        channel.invokeMethod("wakeUpApplication", wakeup.arguments.toMap(), new MethodChannel.Result() {
+            @Override
+            public void success(Object result) {
+                wakeupLatency.record(SystemClock.elapsedRealtimeNanos() - wakeup.requestedAtNanos);
+            }
+
+            @Override
+            public void error(String errorCode, String errorMessage, Object errorDetails) {
+                CallKeepLog.w(TAG, "Background handler failed for {}: {}", wakeup.arguments.getString("callUUID"), errorMessage);
+            }
+
+            @Override
+            public void notImplemented() {
+                CallKeepLog.w(TAG, "Background dispatcher not listening");
+            }
+        });
+    }
+
+    private static class Wakeup {
+        final ConstraintsMap arguments;
+        final long requestedAtNanos;
+
+        Wakeup(ConstraintsMap arguments, long requestedAtNanos) {
+            this.arguments = arguments;
+            this.requestedAtNanos = requestedAtNanos;
+        }
+    }
+}
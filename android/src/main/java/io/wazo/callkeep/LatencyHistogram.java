@@ -0,0 +1,85 @@
+package io.wazo.callkeep;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Fixed-bucket latency histogram, in milliseconds.
+ *
+ * Percentiles are reported as the upper bound of the bucket holding them.
+ */
+public class LatencyHistogram {
+    // Upper bound of each bucket, the last bucket collects everything above
+    private static final long[] DEFAULT_BUCKETS_MS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 300, 500, 1000, 2000, 5000, Long.MAX_VALUE
+    };
+
+    private final long[] bucketsMs;
+    private final long[] counts;
+    private long count = 0;
+    private double sumMs = 0;
+    private double minMs = Double.MAX_VALUE;
+    private double maxMs = 0;
+
+    public LatencyHistogram() {
+        this(DEFAULT_BUCKETS_MS);
+    }
+
+    /**
+     * @param bucketsMs ascending upper bounds, ending with Long.MAX_VALUE
+     */
+    public LatencyHistogram(long[] bucketsMs) {
+        this.bucketsMs = bucketsMs;
+        this.counts = new long[bucketsMs.length];
+    }
+
+    public synchronized void record(long nanos) {
+        double ms = nanos / 1000000.0;
+        int bucket = 0;
+        while (ms > bucketsMs[bucket]) {
+            bucket++;
+        }
+        counts[bucket]++;
+        count++;
+        sumMs += ms;
+        minMs = Math.min(minMs, ms);
+        maxMs = Math.max(maxMs, ms);
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        count = 0;
+        sumMs = 0;
+        minMs = Double.MAX_VALUE;
+        maxMs = 0;
+    }
+
+    public synchronized ConstraintsMap toConstraintsMap() {
+        ConstraintsMap map = new ConstraintsMap();
+        map.putInt("count", (int) count);
+        if (count == 0) {
+            return map;
+        }
+        map.putDouble("minMs", minMs);
+        map.putDouble("maxMs", maxMs);
+        map.putDouble("meanMs", sumMs / count);
+        map.putDouble("p50Ms", percentile(0.50));
+        map.putDouble("p90Ms", percentile(0.90));
+        map.putDouble("p99Ms", percentile(0.99));
+        return map;
+    }
+
+    private double percentile(double percentile) {
+        long target = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                // The overflow bucket has no upper bound, report the max instead
+                return i == counts.length - 1 ? maxMs : Math.min(bucketsMs[i], maxMs);
+            }
+        }
+        return maxMs;
+    }
+}
@@ -0,0 +1,106 @@
+package io.wazo.callkeep;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Configuration;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.os.Build;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Per-process cache of the call-independent parts of the incoming call notifications.
+ *
+ * Each notification channel is created once, when first used. Drawable ids, the launch PendingIntent and the default
+ * ringtone are resolved on first use and dropped again on configuration changes.
+ */
+public class NotificationTemplateCache implements ComponentCallbacks {
+    public static final String CALL_CHANNEL_ID = "call_notification_id";
+    public static final String INCOMING_CALLS_CHANNEL_ID = "incoming_calls";
+
+    private final Context context;
+    private final HashMap<String, Integer> drawableIds = new HashMap<>();
+    private final HashSet<String> createdChannels = new HashSet<>();
+    private PendingIntent launchPendingIntent = null;
+    private Uri defaultRingtoneUri = null;
+    private boolean defaultRingtoneResolved = false;
+
+    public NotificationTemplateCache(Context context) {
+        this.context = context.getApplicationContext();
+        this.context.registerComponentCallbacks(this);
+    }
+
+    public void release() {
+        context.unregisterComponentCallbacks(this);
+        invalidate();
+    }
+
+    /**
+     * Creates the channel on its first use.
+     *
+     * @param channelId {@link #CALL_CHANNEL_ID} or {@link #INCOMING_CALLS_CHANNEL_ID}
+     */
+    public synchronized void ensureChannel(NotificationManager manager, String channelId) {
+        if (!createdChannels.add(channelId)) {
+            return;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            String name = INCOMING_CALLS_CHANNEL_ID.equals(channelId) ? "Incoming Calls" : "Call Notification Channel";
+            manager.createNotificationChannel(new NotificationChannel(
+                    channelId,
+                    name,
+                    NotificationManager.IMPORTANCE_HIGH));
+        }
+    }
+
+    public synchronized int getDrawableId(String name) {
+        Integer id = drawableIds.get(name);
+        if (id == null) {
+            id = context.getResources().getIdentifier(name, "drawable", context.getPackageName());
+            drawableIds.put(name, id);
+        }
+        return id;
+    }
+
+    public synchronized PendingIntent getLaunchPendingIntent() {
+        if (launchPendingIntent == null) {
+            final Intent intent = context.getPackageManager().getLaunchIntentForPackage(context.getPackageName());
+            launchPendingIntent = PendingIntent.getActivity(context, 0, intent, 0);
+        }
+        return launchPendingIntent;
+    }
+
+    @Nullable
+    public synchronized Uri getDefaultRingtoneUri() {
+        if (!defaultRingtoneResolved) {
+            defaultRingtoneUri = RingtoneManager.getActualDefaultRingtoneUri(context, RingtoneManager.TYPE_RINGTONE);
+            defaultRingtoneResolved = true;
+        }
+        return defaultRingtoneUri;
+    }
+
+    public synchronized void invalidate() {
+        drawableIds.clear();
+        launchPendingIntent = null;
+        defaultRingtoneUri = null;
+        defaultRingtoneResolved = false;
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        invalidate();
+    }
+
+    @Override
+    public void onLowMemory() {
+    }
+}
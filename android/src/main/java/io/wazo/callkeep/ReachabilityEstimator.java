@@ -0,0 +1,159 @@
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.Nullable;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Keeps a small histogram of the time Dart takes to answer a reachability check and derives the
+ * timeout of the next check from it.
+ *
+ * The timeout is the upper bound of the bucket holding the configured percentile, clamped between
+ * the floor and the ceiling. Until enough samples are collected the ceiling is used.
+ *
+ * Checks only happen in processes started for a call, so the histogram is persisted once attached
+ * to a context and accumulates across processes. Past MAX_SAMPLES every bucket is halved, so the
+ * estimate follows the device rather than its history.
+ */
+public class ReachabilityEstimator {
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final long DEFAULT_FLOOR_MS = 250;
+    public static final long DEFAULT_CEILING_MS = 2000;
+    private static final int MIN_SAMPLES = 5;
+    private static final int MAX_SAMPLES = 200;
+
+    private static final String PREFERENCES = "io.wazo.callkeep";
+    private static final String KEY_COUNTS = "reachabilityCounts";
+
+    // Upper bound of each bucket, the last bucket collects everything above
+    private static final long[] BUCKETS_MS = {
+            25, 50, 75, 100, 150, 200, 300, 400, 500, 750, 1000, 1500, 2000, 3000, 5000, Long.MAX_VALUE
+    };
+
+    private final int[] counts = new int[BUCKETS_MS.length];
+    private int samples = 0;
+    private double percentile = DEFAULT_PERCENTILE;
+    private long floorMs = DEFAULT_FLOOR_MS;
+    private long ceilingMs = DEFAULT_CEILING_MS;
+    @Nullable
+    private SharedPreferences preferences = null;
+
+    /**
+     * Restores the samples persisted by previous processes and persists the new ones.
+     */
+    public synchronized void attach(Context context) {
+        if (preferences != null) {
+            return;
+        }
+        preferences = context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        restore(preferences.getString(KEY_COUNTS, null));
+    }
+
+    public synchronized void configure(double percentile, long floorMs, long ceilingMs) {
+        this.percentile = Math.min(1.0, Math.max(0.0, percentile));
+        this.floorMs = Math.max(0, floorMs);
+        this.ceilingMs = Math.max(this.floorMs, ceilingMs);
+    }
+
+    public synchronized void record(long rttMs) {
+        int bucket = 0;
+        while (rttMs > BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        counts[bucket]++;
+        samples++;
+        if (samples > MAX_SAMPLES) {
+            samples = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] /= 2;
+                samples += counts[i];
+            }
+        }
+        persist();
+    }
+
+    public synchronized int samples() {
+        return samples;
+    }
+
+    public synchronized long timeoutMs() {
+        if (samples < MIN_SAMPLES) {
+            return ceilingMs;
+        }
+
+        long target = (long) Math.ceil(samples * percentile);
+        long seen = 0;
+        long estimate = ceilingMs;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                estimate = BUCKETS_MS[i];
+                break;
+            }
+        }
+        return Math.min(ceilingMs, Math.max(floorMs, estimate));
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        samples = 0;
+        persist();
+    }
+
+    public synchronized ConstraintsMap toConstraintsMap() {
+        ConstraintsMap metrics = new ConstraintsMap();
+        metrics.putInt("samples", samples);
+        metrics.putLong("timeoutMs", timeoutMs());
+        return metrics;
+    }
+
+    /**
+     * @return the bucket counts, comma separated
+     */
+    synchronized String encode() {
+        StringBuilder builder = new StringBuilder(counts.length * 3);
+        for (int i = 0; i < counts.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(counts[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Adds encoded bucket counts to the histogram. Counts of another bucket layout are ignored.
+     */
+    synchronized void restore(@Nullable String encoded) {
+        if (encoded == null) {
+            return;
+        }
+        String[] values = encoded.split(",");
+        if (values.length != counts.length) {
+            return;
+        }
+        int[] restored = new int[counts.length];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                restored[i] = Math.max(0, Integer.parseInt(values[i]));
+            }
+        } catch (NumberFormatException e) {
+            return;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += restored[i];
+            samples += restored[i];
+        }
+    }
+
+    private void persist() {
+        if (preferences != null) {
+            preferences.edit().putString(KEY_COUNTS, encode()).apply();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package io.wazo.callkeep;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.flutter.plugin.common.MethodChannel;
+import io.wazo.callkeep.utils.ConstraintsMap;
+import io.wazo.callkeep.utils.MainThreadResult;
+
+/**
+ * Runs the method calls that cross into system_server (TelecomManager, NotificationManager) off
+ * the platform thread, in order with the changes made to the connections.
+ *
+ * Operations are queued per call UUID. Each queue is serial, so operations on one call (display,
+ * mute, hold, end...) always run in submission order, while the queues of different calls are
+ * drained concurrently by a small shared pool. Operations that change a Connection or Conference
+ * are queued the same way but run on the main thread, where Telecom invokes their callbacks.
+ *
+ * Operations that are not bound to a call (end all calls, account lookups, custom notifications)
+ * are barriers: each one waits for the call queues to drain and runs alone, and the operations
+ * submitted after it wait for it. Results are completed on the main thread.
+ */
+class TelecomExecutor {
+    private static final String TAG = "FLT:TelecomExecutor";
+    private static final String E_OPERATION_FAILED = "E_OPERATION_FAILED";
+    private static final int MAX_WORKERS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    interface Operation {
+        void run(MethodChannel.Result result);
+    }
+
+    private final ThreadPoolExecutor workers;
+    private final Executor mainThread;
+    // Guarded by itself. Only holds the queues with pending or running operations.
+    private final HashMap<String, SerialQueue> queues = new HashMap<>();
+    // Global operations, and the operations submitted after the first one, in submission order
+    private final ArrayDeque<Task> held = new ArrayDeque<>();
+    private boolean globalRunning = false;
+    private boolean shutdown = false;
+    private int maxDepth = 0;
+    private int executed = 0;
+
+    TelecomExecutor() {
+        this(new Handler(Looper.getMainLooper())::post);
+    }
+
+    /**
+     * @param mainThread runs the operations that change connections, in order
+     */
+    TelecomExecutor(Executor mainThread) {
+        this.mainThread = mainThread;
+        final AtomicInteger threadCount = new AtomicInteger();
+        workers = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "CallKeep-Telecom-" + threadCount.incrementAndGet()));
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues an operation that is not bound to a call.
+     */
+    void execute(Operation operation, MethodChannel.Result result) {
+        execute(null, operation, result);
+    }
+
+    /**
+     * Queues an operation behind the pending operations of the same call. The operation must
+     * complete the given result, from any thread.
+     */
+    void execute(@Nullable String uuid, Operation operation, MethodChannel.Result result) {
+        execute(uuid, false, operation, result);
+    }
+
+    /**
+     * Queues an operation that changes connections behind the pending operations of the same call,
+     * to run on the main thread.
+     */
+    void executeOnMainThread(@Nullable String uuid, Operation operation, MethodChannel.Result result) {
+        execute(uuid, true, operation, result);
+    }
+
+    private void execute(@Nullable String uuid, boolean onMainThread, final Operation operation, MethodChannel.Result result) {
+        final MethodChannel.Result mainThreadResult = new MainThreadResult(result);
+        boolean queued = submit(uuid, onMainThread, () -> {
+            try {
+                operation.run(mainThreadResult);
+            } catch (RuntimeException e) {
+                CallKeepLog.e(TAG, "Operation failed for {}", uuid != null ? uuid : "global queue", e);
+                mainThreadResult.error(E_OPERATION_FAILED, e.getMessage(), null);
+            }
+        });
+        if (!queued) {
+            mainThreadResult.error(E_OPERATION_FAILED, "CallKeep has been disposed", null);
+        }
+    }
+
+    /**
+     * Queues a task behind the pending operations of the same call, or as a barrier when it is not
+     * bound to a call. The task must not throw.
+     *
+     * @param onMainThread whether the task changes connections and must run on the main thread
+     * @return false if the executor has been shut down
+     */
+    boolean submit(@Nullable String uuid, boolean onMainThread, Runnable task) {
+        synchronized (queues) {
+            if (shutdown) {
+                return false;
+            }
+
+            Task queued = new Task(uuid, task, onMainThread);
+            if (uuid == null || globalRunning || !held.isEmpty()) {
+                held.add(queued);
+                startGlobalIfIdle();
+            } else {
+                enqueue(queued);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Lets the queued operations complete, then stops the workers.
+     */
+    void shutdown() {
+        synchronized (queues) {
+            shutdown = true;
+            stopIfIdle();
+        }
+    }
+
+    boolean isShutdown() {
+        synchronized (queues) {
+            return shutdown;
+        }
+    }
+
+    ConstraintsMap toConstraintsMap() {
+        ConstraintsMap metrics = new ConstraintsMap();
+        ConstraintsMap depths = new ConstraintsMap();
+        int pending = 0;
+        synchronized (queues) {
+            for (Map.Entry<String, SerialQueue> entry : queues.entrySet()) {
+                int depth = entry.getValue().pending.size();
+                pending += depth;
+                depths.putInt(entry.getKey(), depth);
+            }
+            metrics.putInt("activeQueues", queues.size());
+            metrics.putInt("pending", pending + held.size());
+            metrics.putInt("held", held.size());
+            metrics.putInt("maxDepth", maxDepth);
+            metrics.putInt("executed", executed);
+        }
+        metrics.putInt("workers", MAX_WORKERS);
+        metrics.putInt("busyWorkers", workers.getActiveCount());
+        metrics.putMap("depths", depths.toMap());
+        return metrics;
+    }
+
+    void resetMetrics() {
+        synchronized (queues) {
+            maxDepth = 0;
+            executed = 0;
+        }
+    }
+
+    private void enqueue(Task task) {
+        SerialQueue queue = queues.get(task.uuid);
+        if (queue == null) {
+            queue = new SerialQueue(task.uuid);
+            queues.put(task.uuid, queue);
+        }
+        queue.pending.add(task);
+        maxDepth = Math.max(maxDepth, queue.pending.size());
+        if (!queue.scheduled) {
+            queue.scheduled = true;
+            dispatch(queue, task.onMainThread);
+        }
+    }
+
+    /*
+     * Unless a global operation is running, the first held task is a global one
+     */
+    private void startGlobalIfIdle() {
+        if (globalRunning || !queues.isEmpty() || held.isEmpty()) {
+            return;
+        }
+        globalRunning = true;
+        Task task = held.poll();
+        dispatch(new GlobalStep(task), task.onMainThread);
+    }
+
+    private void dispatch(Runnable runnable, boolean onMainThread) {
+        if (onMainThread) {
+            mainThread.execute(runnable);
+        } else {
+            workers.execute(runnable);
+        }
+    }
+
+    private void stopIfIdle() {
+        if (shutdown && queues.isEmpty() && held.isEmpty() && !globalRunning) {
+            workers.shutdown();
+        }
+    }
+
+    private static final class Task {
+        // null for global operations
+        @Nullable final String uuid;
+        final Runnable runnable;
+        final boolean onMainThread;
+
+        Task(@Nullable String uuid, Runnable runnable, boolean onMainThread) {
+            this.uuid = uuid;
+            this.runnable = runnable;
+            this.onMainThread = onMainThread;
+        }
+    }
+
+    /**
+     * Serial queue of one call. It runs a single operation per scheduling so that a busy call
+     * cannot hold a worker, or the main thread, while other calls are waiting, then reschedules
+     * itself on the thread of its next operation.
+     */
+    private class SerialQueue implements Runnable {
+        final String key;
+        final ArrayDeque<Task> pending = new ArrayDeque<>();
+        // Whether this queue is submitted to, or running on, a worker or the main thread
+        boolean scheduled = false;
+
+        SerialQueue(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            Task task;
+            synchronized (queues) {
+                task = pending.poll();
+            }
+            try {
+                if (task != null) {
+                    task.runnable.run();
+                }
+            } finally {
+                synchronized (queues) {
+                    executed++;
+                    Task next = pending.peek();
+                    if (next != null) {
+                        dispatch(this, next.onMainThread);
+                    } else {
+                        scheduled = false;
+                        queues.remove(key);
+                        startGlobalIfIdle();
+                        stopIfIdle();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a global operation once every call queue has drained, then releases the operations held
+     * behind it up to the next global one.
+     */
+    private class GlobalStep implements Runnable {
+        final Task task;
+
+        GlobalStep(Task task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.runnable.run();
+            } finally {
+                synchronized (queues) {
+                    executed++;
+                    globalRunning = false;
+                    while (!held.isEmpty() && held.peek().uuid != null) {
+                        enqueue(held.poll());
+                    }
+                    startGlobalIfIdle();
+                    stopIfIdle();
+                }
+            }
+        }
+    }
+}
@@ -17,31 +17,164 @@
 
 package io.wazo.callkeep;
 
+import android.telecom.CallAudioState;
 import android.telecom.Conference;
 import android.telecom.Connection;
+import android.telecom.DisconnectCause;
 import android.telecom.PhoneAccountHandle;
 
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+import static io.wazo.callkeep.Constants.*;
+
+/**
+ * Conference of VoiceConnections with incrementally tracked membership.
+ *
+ * Hold, mute and disconnect are applied to every member in one pass, without the per-call events
+ * of each member. A single ACTION_CONFERENCE_CHANGED event describes each change as a delta: the
+ * current members, the calls added, removed (still live) and disconnected by the conference, and
+ * the hold or mute state now shared by all members.
+ *
+ * The conference is conferenceable with the calls its members are conferenceable with, which are
+ * the only ones a merge pulls in.
+ */
 public class VoiceConference extends Conference {
+    private static final String TAG = "RNCK:VoiceConference";
+
+    private final String id = UUID.randomUUID().toString();
+    // Guarded by this, in join order
+    private final LinkedHashMap<String, VoiceConnection> members = new LinkedHashMap<>();
+    private boolean isMuted = false;
+    private final Object publishLock = new Object();
 
     VoiceConference(PhoneAccountHandle phoneAccountHandle) {
         super(phoneAccountHandle);
+        this.setConnectionCapabilities(Connection.CAPABILITY_MUTE | Connection.CAPABILITY_HOLD | Connection.CAPABILITY_SUPPORT_HOLD);
         this.setActive();
-//        this.setConnectionCapabilities(Connection.CAPABILITY_MUTE | Connection.CAPABILITY_HOLD | Connection.CAPABILITY_SUPPORT_HOLD);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Adds the calls that are not members yet, and makes them active with the conference.
+     *
+     * Membership is decided under the lock, Telecom is called outside of it.
+     */
+    void join(VoiceConnection... connections) {
+        LinkedHashMap<String, VoiceConnection> joining = new LinkedHashMap<>();
+        synchronized (this) {
+            for (VoiceConnection connection : connections) {
+                String uuid = connection.getConnectionExtras().getUuid();
+                if (uuid == null || members.containsKey(uuid)) {
+                    continue;
+                }
+                members.put(uuid, connection);
+                joining.put(uuid, connection);
+            }
+        }
+
+        ArrayList<String> added = new ArrayList<>();
+        for (Map.Entry<String, VoiceConnection> entry : joining.entrySet()) {
+            String uuid = entry.getKey();
+            VoiceConnection connection = entry.getValue();
+            // Refused when the call already belongs to another conference
+            if (!addConnection(connection)) {
+                CallKeepLog.w(TAG, "Call {} cannot join conference {}", uuid, id);
+                synchronized (this) {
+                    members.remove(uuid);
+                }
+                continue;
+            }
+            FlightRecorder.record(FlightRecorder.CONFERENCE_JOINED, uuid);
+            connection.setActive();
+            added.add(uuid);
+        }
+
+        if (!added.isEmpty()) {
+            publishConferenceables();
+            emitDelta(added, null, null, Boolean.FALSE, null, true);
+        }
+    }
+
+    /**
+     * Removes a call that ended on its own. Its end has already been reported.
+     */
+    void onMemberEnded(VoiceConnection connection) {
+        String uuid = connection.getConnectionExtras().getUuid();
+        synchronized (this) {
+            if (members.remove(uuid) == null) {
+                return;
+            }
+        }
+        removeConnection(connection);
+        FlightRecorder.record(FlightRecorder.CONFERENCE_LEFT, uuid);
+        publishConferenceables();
+        emitDelta(null, Collections.singletonList(uuid), null, null, null, true);
+        dissolveIfAlone();
     }
 
     @Override
     public void onMerge() {
         super.onMerge();
+        // Merging a third call reuses this conference
+        ArrayList<VoiceConnection> candidates = new ArrayList<>();
+        for (Connection connection : getConferenceableConnections()) {
+            if (connection instanceof VoiceConnection && connection.getConference() == null) {
+                candidates.add((VoiceConnection) connection);
+            }
+        }
+        join(candidates.toArray(new VoiceConnection[0]));
     }
 
     @Override
     public void onSeparate(Connection connection) {
         super.onSeparate(connection);
+        if (!(connection instanceof VoiceConnection)) {
+            return;
+        }
+
+        String uuid = ((VoiceConnection) connection).getConnectionExtras().getUuid();
+        synchronized (this) {
+            if (members.remove(uuid) == null) {
+                return;
+            }
+        }
+        removeConnection(connection);
+        FlightRecorder.record(FlightRecorder.CONFERENCE_LEFT, uuid);
+        publishConferenceables();
+        emitDelta(null, Collections.singletonList(uuid), null, null, null, true);
+        dissolveIfAlone();
     }
 
     @Override
     public void onDisconnect() {
         super.onDisconnect();
+        ArrayList<VoiceConnection> ended;
+        synchronized (this) {
+            ended = new ArrayList<>(members.values());
+            members.clear();
+        }
+
+        ArrayList<String> disconnected = new ArrayList<>();
+        for (VoiceConnection connection : ended) {
+            disconnected.add(connection.getConnectionExtras().getUuid());
+            connection.disconnectFromConference();
+        }
+        setDisconnected(new DisconnectCause(DisconnectCause.LOCAL));
+        destroy();
+        emitDelta(null, null, disconnected, null, null, false);
     }
 
     @Override
@@ -52,10 +185,109 @@ public class VoiceConference extends Conference {
     @Override
     public void onHold() {
         super.onHold();
+        this.setOnHold();
+        for (VoiceConnection connection : getMembers()) {
+            connection.setOnHold();
+        }
+        emitDelta(null, null, null, Boolean.TRUE, null, true);
     }
 
     @Override
     public void onUnhold() {
         super.onUnhold();
+        this.setActive();
+        for (VoiceConnection connection : getMembers()) {
+            connection.setActive();
+        }
+        emitDelta(null, null, null, Boolean.FALSE, null, true);
+    }
+
+    @Override
+    public void onCallAudioStateChanged(CallAudioState state) {
+        super.onCallAudioStateChanged(state);
+        synchronized (this) {
+            if (state.isMuted() == isMuted) {
+                return;
+            }
+            isMuted = state.isMuted();
+        }
+        for (VoiceConnection connection : getMembers()) {
+            connection.setMutedFromConference(state.isMuted());
+        }
+        emitDelta(null, null, null, null, state.isMuted(), true);
+    }
+
+    /**
+     * Hands Telecom the calls the members are conferenceable with, outside of any conference.
+     * Publications are serialized so a stale list never wins.
+     */
+    void publishConferenceables() {
+        synchronized (publishLock) {
+            LinkedHashSet<Connection> links = new LinkedHashSet<>();
+            List<VoiceConnection> current = getMembers();
+            for (VoiceConnection member : current) {
+                links.addAll(member.copyConferenceables());
+            }
+            links.removeAll(current);
+            ArrayList<Connection> conferenceables = new ArrayList<>();
+            for (Connection connection : links) {
+                if (connection.getConference() == null) {
+                    conferenceables.add(connection);
+                }
+            }
+            setConferenceableConnections(conferenceables);
+        }
+    }
+
+    private synchronized List<VoiceConnection> getMembers() {
+        return new ArrayList<>(members.values());
+    }
+
+    /**
+     * A conference needs two calls, the last member goes on as a regular call.
+     */
+    private void dissolveIfAlone() {
+        VoiceConnection last;
+        synchronized (this) {
+            if (members.size() != 1) {
+                return;
+            }
+            last = members.values().iterator().next();
+            members.clear();
+        }
+        removeConnection(last);
+        FlightRecorder.record(FlightRecorder.CONFERENCE_LEFT, last.getConnectionExtras().getUuid());
+        setDisconnected(new DisconnectCause(DisconnectCause.OTHER));
+        destroy();
+        emitDelta(null, Collections.singletonList(last.getConnectionExtras().getUuid()), null, null, null, false);
+    }
+
+    private void emitDelta(@Nullable List<String> added, @Nullable List<String> removed,
+                           @Nullable List<String> disconnected, @Nullable Boolean hold,
+                           @Nullable Boolean muted, boolean active) {
+        ConstraintsMap body = new ConstraintsMap();
+        body.putString("conferenceId", id);
+        body.putArray("members", new ArrayList<Object>(memberUuids()));
+        if (added != null) {
+            body.putArray("added", new ArrayList<Object>(added));
+        }
+        if (removed != null) {
+            body.putArray("removed", new ArrayList<Object>(removed));
+        }
+        if (disconnected != null) {
+            body.putArray("disconnected", new ArrayList<Object>(disconnected));
+        }
+        if (hold != null) {
+            body.putBoolean("hold", hold);
+        }
+        if (muted != null) {
+            body.putBoolean("muted", muted);
+        }
+        body.putBoolean("active", active);
+        CallEventBus.post(CallEvent.withBody(ACTION_CONFERENCE_CHANGED, id, body.toMap()));
+    }
+
+    private synchronized List<String> memberUuids() {
+        return new ArrayList<>(members.keySet());
     }
 }
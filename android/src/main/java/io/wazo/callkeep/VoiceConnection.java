@@ -19,38 +19,41 @@ package io.wazo.callkeep;
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.content.Intent;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import android.telecom.CallAudioState;
 import android.telecom.Connection;
 import android.telecom.DisconnectCause;
 import android.telecom.TelecomManager;
-import android.util.Log;
 
-import androidx.annotation.Nullable;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import static io.wazo.callkeep.Constants.*;
 
 @TargetApi(Build.VERSION_CODES.M)
 public class VoiceConnection extends Connection {
+    // Only accessed on the main thread, like every Telecom callback
     private boolean isMuted = false;
-    private HashMap<String, String> handle;
+    private ConnectionExtras handle;
+    private final Set<Connection> conferenceables = new LinkedHashSet<>();
+    private boolean conferenceablesChanged = false;
+    private final Object publishLock = new Object();
     private final Context context;
     private static final String TAG = "RNCK:VoiceConnection";
 
-    VoiceConnection(Context context, HashMap<String, String> handle) {
+    VoiceConnection(Context context, ConnectionExtras handle) {
         super();
         this.handle = handle;
         this.context = context;
 
-        String number = handle.get(EXTRA_CALL_NUMBER);
-        String name = handle.get(EXTRA_CALLER_NAME);
+        String number = handle.getNumber();
+        String name = handle.getName();
 
         if (number != null) {
             setAddress(Uri.parse(number), TelecomManager.PRESENTATION_ALLOWED);
@@ -63,9 +66,9 @@ public class VoiceConnection extends Connection {
     @Override
     public void onExtrasChanged(Bundle extras) {
         super.onExtrasChanged(extras);
-        HashMap attributeMap = (HashMap<String, String>)extras.getSerializable("attributeMap");
+        HashMap<String, String> attributeMap = (HashMap<String, String>)extras.getSerializable("attributeMap");
         if (attributeMap != null) {
-            handle = attributeMap;
+            handle = ConnectionExtras.fromMap(attributeMap);
         }
     }
 
@@ -76,42 +79,46 @@ public class VoiceConnection extends Connection {
         }
 
         this.isMuted = state.isMuted();
+        // Telecom may tell the members before their conference, which reports the mute once for all
+        if (getConference() instanceof VoiceConference) {
+            return;
+        }
+        FlightRecorder.record(FlightRecorder.MUTED, handle.getUuid(), isMuted ? 1 : 0);
         sendCallRequestToActivity(isMuted ? ACTION_MUTE_CALL : ACTION_UNMUTE_CALL, handle);
     }
 
     @Override
     public void onAnswer() {
         super.onAnswer();
-        Log.d(TAG, "onAnswer called");
+        CallMetrics.mark(handle.getUuid(), CallMetrics.Stage.ANSWER);
+        FlightRecorder.record(FlightRecorder.ANSWERED, handle.getUuid());
+        CallKeepLog.d(TAG, "onAnswer called");
 
         setConnectionCapabilities(getConnectionCapabilities() | Connection.CAPABILITY_HOLD);
         setAudioModeIsVoip(true);
 
         sendCallRequestToActivity(ACTION_ANSWER_CALL, handle);
         sendCallRequestToActivity(ACTION_AUDIO_SESSION, handle);
-        Log.d(TAG, "onAnswer executed");
+        CallKeepLog.d(TAG, "onAnswer executed");
     }
 
     @Override
     public void onPlayDtmfTone(char dtmf) {
-        try {
-            handle.put("DTMF", Character.toString(dtmf));
-        } catch (Throwable exception) {
-            Log.e(TAG, "Handle map error", exception);
-        }
-        sendCallRequestToActivity(ACTION_DTMF_TONE, handle);
+        FlightRecorder.record(FlightRecorder.DTMF, handle.getUuid(), dtmf);
+        CallEventBus.post(new CallEvent(ACTION_DTMF_TONE, handle.getUuid(), handle.getNumber(), handle.getName(), Character.toString(dtmf)));
     }
 
     @Override
     public void onDisconnect() {
         super.onDisconnect();
         setDisconnected(new DisconnectCause(DisconnectCause.LOCAL));
+        FlightRecorder.record(FlightRecorder.DISCONNECTED, handle.getUuid(), DisconnectCause.LOCAL);
         sendCallRequestToActivity(ACTION_END_CALL, handle);
-        Log.d(TAG, "onDisconnect executed");
+        CallKeepLog.d(TAG, "onDisconnect executed");
         try {
-            VoiceConnectionService.deinitConnection(handle.get(EXTRA_CALL_UUID));
+            VoiceConnectionService.deinitConnection(handle.getUuid());
         } catch(Throwable exception) {
-            Log.e(TAG, "Handle map error", exception);
+            CallKeepLog.e(TAG, "Handle map error", exception);
         }
         destroy();
     }
@@ -138,20 +145,22 @@ public class VoiceConnection extends Connection {
             default:
                 break;
         }
-        VoiceConnectionService.deinitConnection(handle.get(EXTRA_CALL_UUID));
+        FlightRecorder.record(FlightRecorder.DISCONNECTED, handle.getUuid(), reason);
+        VoiceConnectionService.deinitConnection(handle.getUuid());
         destroy();
     }
 
     @Override
     public void onAbort() {
         super.onAbort();
+        FlightRecorder.record(FlightRecorder.ABORTED, handle.getUuid());
         setDisconnected(new DisconnectCause(DisconnectCause.REJECTED));
         sendCallRequestToActivity(ACTION_END_CALL, handle);
-        Log.d(TAG, "onAbort executed");
+        CallKeepLog.d(TAG, "onAbort executed");
         try {
-            VoiceConnectionService.deinitConnection(handle.get(EXTRA_CALL_UUID));
+            VoiceConnectionService.deinitConnection(handle.getUuid());
         } catch(Throwable exception) {
-            Log.e(TAG, "Handle map error", exception);
+            CallKeepLog.e(TAG, "Handle map error", exception);
         }
         destroy();
     }
@@ -159,6 +168,7 @@ public class VoiceConnection extends Connection {
     @Override
     public void onHold() {
         super.onHold();
+        FlightRecorder.record(FlightRecorder.HELD, handle.getUuid());
         this.setOnHold();
         sendCallRequestToActivity(ACTION_HOLD_CALL, handle);
     }
@@ -166,6 +176,7 @@ public class VoiceConnection extends Connection {
     @Override
     public void onUnhold() {
         super.onUnhold();
+        FlightRecorder.record(FlightRecorder.UNHELD, handle.getUuid());
         sendCallRequestToActivity(ACTION_UNHOLD_CALL, handle);
         setActive();
     }
@@ -173,35 +184,95 @@ public class VoiceConnection extends Connection {
     @Override
     public void onReject() {
         super.onReject();
+        FlightRecorder.record(FlightRecorder.REJECTED, handle.getUuid());
         setDisconnected(new DisconnectCause(DisconnectCause.REJECTED));
         sendCallRequestToActivity(ACTION_END_CALL, handle);
-        Log.d(TAG, "onReject executed");
+        CallKeepLog.d(TAG, "onReject executed");
         try {
-            VoiceConnectionService.deinitConnection(handle.get(EXTRA_CALL_UUID));
+            VoiceConnectionService.deinitConnection(handle.getUuid());
         } catch(Throwable exception) {
-            Log.e(TAG, "Handle map error", exception);
+            CallKeepLog.e(TAG, "Handle map error", exception);
         }
         destroy();
     }
 
+    ConnectionExtras getConnectionExtras() {
+        return handle;
+    }
+
     /*
-     * Send call request to the RNCallKeepModule
+     * Changes driven by a VoiceConference, which reports them for all its members in one event
+     */
+    void setMutedFromConference(boolean muted) {
+        this.isMuted = muted;
+        FlightRecorder.record(FlightRecorder.MUTED, handle.getUuid(), muted ? 1 : 0);
+    }
+
+    void disconnectFromConference() {
+        setDisconnected(new DisconnectCause(DisconnectCause.LOCAL));
+        FlightRecorder.record(FlightRecorder.DISCONNECTED, handle.getUuid(), DisconnectCause.LOCAL);
+        VoiceConnectionService.deinitConnection(handle.getUuid());
+        destroy();
+    }
+
+    /*
+     * Conferenceable links are maintained incrementally by the CallRegistry, which publishes them
+     * once its lock is released
+     */
+    void addConferenceable(Connection peer) {
+        synchronized (conferenceables) {
+            if (conferenceables.add(peer)) {
+                conferenceablesChanged = true;
+            }
+        }
+    }
+
+    void removeConferenceable(Connection peer) {
+        synchronized (conferenceables) {
+            if (conferenceables.remove(peer)) {
+                conferenceablesChanged = true;
+            }
+        }
+    }
+
+    void clearConferenceables() {
+        synchronized (conferenceables) {
+            conferenceables.clear();
+            conferenceablesChanged = false;
+        }
+    }
+
+    /**
+     * Hands the links to Telecom if they changed since they were last published. Its listeners run
+     * outside of the links lock, publications are serialized so a stale list never wins.
+     *
+     * @return true if the links were published, the conference of the call has to publish its own
      */
-    private void sendCallRequestToActivity(final String action, @Nullable final HashMap attributeMap) {
-        final VoiceConnection instance = this;
-        final Handler handler = new Handler();
-
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                Intent intent = new Intent(action);
-                if (attributeMap != null) {
-                    Bundle extras = new Bundle();
-                    extras.putSerializable("attributeMap", attributeMap);
-                    intent.putExtras(extras);
+    boolean publishConferenceables() {
+        synchronized (publishLock) {
+            List<Connection> links;
+            synchronized (conferenceables) {
+                if (!conferenceablesChanged) {
+                    return false;
                 }
-                LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+                conferenceablesChanged = false;
+                links = new ArrayList<>(conferenceables);
             }
-        });
+            setConferenceableConnections(links);
+            return true;
+        }
+    }
+
+    List<Connection> copyConferenceables() {
+        synchronized (conferenceables) {
+            return new ArrayList<>(conferenceables);
+        }
+    }
+
+    /*
+     * Send call request to the RNCallKeepModule
+     */
+    private void sendCallRequestToActivity(final String action, final ConnectionExtras handle) {
+        CallEventBus.post(CallEvent.fromExtras(action, handle));
     }
 }
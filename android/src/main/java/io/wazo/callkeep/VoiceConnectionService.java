@@ -18,32 +18,27 @@
 package io.wazo.callkeep;
 
 import android.annotation.TargetApi;
-import android.app.ActivityManager;
-import android.app.ActivityManager.RunningTaskInfo;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.telecom.Conference;
 import android.telecom.Connection;
 import android.telecom.ConnectionRequest;
 import android.telecom.ConnectionService;
 import android.telecom.DisconnectCause;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
-import android.util.Log;
 
 import androidx.annotation.Nullable;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
 
 import static io.wazo.callkeep.Constants.*;
@@ -58,20 +53,21 @@ public class VoiceConnectionService extends ConnectionService {
     private static ConnectionRequest currentConnectionRequest;
     private static PhoneAccountHandle phoneAccountHandle = null;
     private static final String TAG = "RNCK:VoiceConnectionService";
-    public static Map<String, VoiceConnection> currentConnections = new HashMap<>();
+    public static final CallRegistry currentConnections = new CallRegistry();
     public static Boolean hasOutgoingCall = false;
     public static VoiceConnectionService currentConnectionService = null;
+    public static final ReachabilityEstimator reachability = new ReachabilityEstimator();
+    private static final Handler reachabilityHandler = new Handler(Looper.getMainLooper());
+    private static Runnable reachabilityTimeout = null;
+    private static long reachabilityCheckStartedAt = 0;
 
     public static Connection getConnection(String connectionId) {
-        if (currentConnections.containsKey(connectionId)) {
-            return currentConnections.get(connectionId);
-        }
-        return null;
+        return currentConnections.get(connectionId);
     }
 
     public VoiceConnectionService() {
         super();
-        Log.e(TAG, "Constructor");
+        CallKeepLog.d(TAG, "Constructor");
         isReachable = false;
         isInitialized = false;
         isAvailable = false;
@@ -79,12 +75,22 @@ public class VoiceConnectionService extends ConnectionService {
         currentConnectionService = this;
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Telecom may bind the service before setup, journal the calls from the first one. Mapping
+        // the file is disk I/O, the registry catches up with the calls added meanwhile on attach.
+        final Context context = getApplicationContext();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> currentConnections.attachJournal(CallJournal.open(context)));
+        reachability.attach(this);
+    }
+
     public static void setPhoneAccountHandle(PhoneAccountHandle phoneAccountHandle) {
         VoiceConnectionService.phoneAccountHandle = phoneAccountHandle;
     }
 
     public static void setAvailable(Boolean value) {
-        Log.d(TAG, "setAvailable: " + (value ? "true" : "false"));
+        CallKeepLog.d(TAG, "setAvailable: {}", value);
         if (value) {
             isInitialized = true;
         }
@@ -93,16 +99,40 @@ public class VoiceConnectionService extends ConnectionService {
     }
 
     public static void setReachable() {
-        Log.d(TAG, "setReachable");
+        CallKeepLog.d(TAG, "setReachable");
         isReachable = true;
         VoiceConnectionService.currentConnectionRequest = null;
+
+        synchronized (reachabilityHandler) {
+            if (reachabilityCheckStartedAt != 0) {
+                reachability.record(SystemClock.elapsedRealtime() - reachabilityCheckStartedAt);
+                reachabilityCheckStartedAt = 0;
+            }
+            // Nothing left to wake up, drop the pending timeout
+            if (reachabilityTimeout != null) {
+                reachabilityHandler.removeCallbacks(reachabilityTimeout);
+                reachabilityTimeout = null;
+            }
+        }
     }
 
     public static void deinitConnection(String connectionId) {
-        Log.d(TAG, "deinitConnection:" + connectionId);
+        CallKeepLog.d(TAG, "deinitConnection: {}", connectionId);
         VoiceConnectionService.hasOutgoingCall = false;
+        CallMetrics.clear(connectionId);
+        WakeLockManager.releaseCall(connectionId);
 
+        FlightRecorder.record(FlightRecorder.REMOVED, connectionId);
+        VoiceConnection connection = currentConnections.get(connectionId);
+        if (connection != null && connection.getConference() instanceof VoiceConference) {
+            ((VoiceConference) connection.getConference()).onMemberEnded(connection);
+        }
         currentConnections.remove(connectionId);
+        // Remote ends reported by the application post no end event of their own
+        CallEventBus.post(new CallEvent(ACTION_CALL_REMOVED, connectionId, null, null, null));
+        if (currentConnections.isEmpty()) {
+            HeadlessEngine.onCallsEnded();
+        }
     }
 
     @Override
@@ -110,8 +140,12 @@ public class VoiceConnectionService extends ConnectionService {
         Bundle extra = request.getExtras();
         Uri number = request.getAddress();
         String name = extra.getString(EXTRA_CALLER_NAME);
+        String uuid = extra.getString(EXTRA_CALL_UUID);
+        CallMetrics.mark(uuid, CallMetrics.Stage.CREATE_INCOMING_CONNECTION);
         Connection incomingCallConnection = createConnection(request);
+        FlightRecorder.record(FlightRecorder.CONNECTION_CREATED, uuid, 0);
         incomingCallConnection.setRinging();
+        CallMetrics.mark(uuid, CallMetrics.Stage.SET_RINGING);
         incomingCallConnection.setInitialized();
 
         return incomingCallConnection;
@@ -122,13 +156,21 @@ public class VoiceConnectionService extends ConnectionService {
         VoiceConnectionService.hasOutgoingCall = true;
         String uuid = UUID.randomUUID().toString();
 
-        if (!isInitialized && !isReachable) {
+        boolean checkingReachability = !isInitialized && !isReachable;
+        if (checkingReachability) {
             notReachableCallUuid = uuid;
             currentConnectionRequest = request;
             this.checkReachability();
         }
 
-        return this.makeOutgoingCall(request, uuid, false);
+        Connection connection = this.makeOutgoingCall(request, uuid, false);
+        if (checkingReachability) {
+            // A wakeup follows if the application does not answer in time, start the background
+            // engine once Telecom has the connection
+            final Context context = this.getApplicationContext();
+            reachabilityHandler.post(() -> HeadlessEngine.prewarm(context));
+        }
+        return connection;
     }
 
     private Connection makeOutgoingCall(ConnectionRequest request, String uuid, Boolean forceWakeUp) {
@@ -139,14 +181,15 @@ public class VoiceConnectionService extends ConnectionService {
         String displayName = extras.getString(EXTRA_CALLER_NAME);
         Boolean isForeground = VoiceConnectionService.isRunning(this.getApplicationContext());
 
-        Log.d(TAG, "makeOutgoingCall:" + uuid + ", number: " + number + ", displayName:" + displayName);
+        CallKeepLog.d(TAG, "makeOutgoingCall: {}, number: {}, displayName: {}", uuid, number, displayName);
 
         // Wakeup application if needed
         if (!isForeground || forceWakeUp) {
-            Log.d(TAG, "onCreateOutgoingConnection: Waking up application");
+            CallKeepLog.d(TAG, "onCreateOutgoingConnection: Waking up application");
             this.wakeUpApplication(uuid, number, displayName);
         } else if (!this.canMakeOutgoingCall() && isReachable) {
-            Log.d(TAG, "onCreateOutgoingConnection: not available");
+            CallKeepLog.d(TAG, "onCreateOutgoingConnection: not available");
+            FlightRecorder.record(FlightRecorder.CONNECTION_FAILED, uuid, DisconnectCause.LOCAL);
             return Connection.createFailedConnection(new DisconnectCause(DisconnectCause.LOCAL));
         }
 
@@ -157,7 +200,9 @@ public class VoiceConnectionService extends ConnectionService {
             extras.putString(EXTRA_CALL_NUMBER, number);
         }
 
-        outgoingCallConnection = createConnection(request);
+        VoiceConnection voiceConnection = createConnection(request);
+        FlightRecorder.record(FlightRecorder.CONNECTION_CREATED, uuid, 1);
+        outgoingCallConnection = voiceConnection;
         outgoingCallConnection.setDialing();
         outgoingCallConnection.setAudioModeIsVoip(true);
         outgoingCallConnection.setCallerDisplayName(displayName, TelecomManager.PRESENTATION_ALLOWED);
@@ -168,12 +213,13 @@ public class VoiceConnectionService extends ConnectionService {
             outgoingCallConnection.setInitialized();
         }
 
-        HashMap<String, String> extrasMap = this.bundleToMap(extras);
-
-        sendCallRequestToActivity(ACTION_ONGOING_CALL, extrasMap);
-        sendCallRequestToActivity(ACTION_AUDIO_SESSION, extrasMap);
+        // EXTRA_CALL_NUMBER of the request extras is the dialed number at this point, while the
+        // connection keeps the full address
+        ConnectionExtras connectionExtras = voiceConnection.getConnectionExtras();
+        CallEventBus.post(new CallEvent(ACTION_ONGOING_CALL, connectionExtras.getUuid(), number, connectionExtras.getName(), null));
+        CallEventBus.post(new CallEvent(ACTION_AUDIO_SESSION, connectionExtras.getUuid(), number, connectionExtras.getName(), null));
 
-        Log.d(TAG, "onCreateOutgoingConnection: calling");
+        CallKeepLog.d(TAG, "onCreateOutgoingConnection: calling");
 
         return outgoingCallConnection;
     }
@@ -186,11 +232,12 @@ public class VoiceConnectionService extends ConnectionService {
         headlessIntent.putExtra("callUUID", uuid);
         headlessIntent.putExtra("name", displayName);
         headlessIntent.putExtra("handle", number);
-        Log.d(TAG, "wakeUpApplication: " + uuid + ", number : " + number + ", displayName:" + displayName);
+        headlessIntent.putExtra(CallKeepBackgroundMessagingService.EXTRA_WAKE_UP_AT, SystemClock.elapsedRealtimeNanos());
+        CallKeepLog.d(TAG, "wakeUpApplication: {}, number: {}, displayName: {}", uuid, number, displayName);
 
         ComponentName name = this.getApplicationContext().startService(headlessIntent);
         if (name != null) {
-            CallKeepBackgroundMessagingService.acquireWakeLockNow(this.getApplicationContext());
+            WakeLockManager.acquire(this.getApplicationContext(), uuid);
         }
     }
 
@@ -198,7 +245,7 @@ public class VoiceConnectionService extends ConnectionService {
         if (currentConnectionRequest == null) {
             return;
         }
-        Log.d(TAG, "checkReachability timeout, force wakeup");
+        CallKeepLog.d(TAG, "checkReachability timeout, force wakeup");
         Bundle extras = request.getExtras();
         String number = request.getAddress().getSchemeSpecificPart();
         String displayName = extras.getString(EXTRA_CALLER_NAME);
@@ -208,42 +255,43 @@ public class VoiceConnectionService extends ConnectionService {
     }
 
     private void checkReachability() {
-        Log.d(TAG, "checkReachability");
+        final long timeoutMs = reachability.timeoutMs();
+        CallKeepLog.d(TAG, "checkReachability, timeout: {}ms", timeoutMs);
 
         final VoiceConnectionService instance = this;
-        sendCallRequestToActivity(ACTION_CHECK_REACHABILITY, null);
-
-        new android.os.Handler().postDelayed(
-            new Runnable() {
+        synchronized (reachabilityHandler) {
+            if (reachabilityTimeout != null) {
+                reachabilityHandler.removeCallbacks(reachabilityTimeout);
+            }
+            reachabilityCheckStartedAt = SystemClock.elapsedRealtime();
+            reachabilityTimeout = new Runnable() {
                 public void run() {
+                    synchronized (reachabilityHandler) {
+                        reachabilityTimeout = null;
+                    }
                     instance.wakeUpAfterReachabilityTimeout(currentConnectionRequest);
                 }
-            }, 2000);
+            };
+            reachabilityHandler.postDelayed(reachabilityTimeout, timeoutMs);
+        }
+
+        sendCallRequestToActivity(ACTION_CHECK_REACHABILITY, null);
     }
 
     private Boolean canMakeOutgoingCall() {
         return isAvailable;
     }
 
-    private Connection createConnection(ConnectionRequest request) {
+    private VoiceConnection createConnection(ConnectionRequest request) {
         Bundle extras = request.getExtras();
-        HashMap<String, String> extrasMap = this.bundleToMap(extras);
-        extrasMap.put(EXTRA_CALL_NUMBER, request.getAddress().toString());
-        VoiceConnection connection = new VoiceConnection(this, extrasMap);
+        ConnectionExtras connectionExtras = new ConnectionExtras(extras);
+        connectionExtras.put(EXTRA_CALL_NUMBER, request.getAddress().toString());
+        VoiceConnection connection = new VoiceConnection(this, connectionExtras);
         connection.setConnectionCapabilities(Connection.CAPABILITY_MUTE | Connection.CAPABILITY_SUPPORT_HOLD);
         connection.setInitializing();
         connection.setExtras(extras);
-        currentConnections.put(extras.getString(EXTRA_CALL_UUID), connection);
-
-        // Get other connections for conferencing
-        Map<String, VoiceConnection> otherConnections = new HashMap<>();
-        for (Map.Entry<String, VoiceConnection> entry : currentConnections.entrySet()) {
-            if(!(extras.getString(EXTRA_CALL_UUID).equals(entry.getKey()))) {
-                otherConnections.put(entry.getKey(), entry.getValue());
-            }
-        }
-        List<Connection> conferenceConnections = new ArrayList<Connection>(otherConnections.values());
-        connection.setConferenceableConnections(conferenceConnections);
+        // Registering also links the connection with every other call for conferencing
+        currentConnections.put(connectionExtras.getUuid(), connection);
 
         return connection;
     }
@@ -254,66 +302,30 @@ public class VoiceConnectionService extends ConnectionService {
         VoiceConnection voiceConnection1 = (VoiceConnection) connection1;
         VoiceConnection voiceConnection2 = (VoiceConnection) connection2;
 
-        VoiceConference voiceConference = new VoiceConference(phoneAccountHandle);
-        voiceConference.addConnection(voiceConnection1);
-        voiceConference.addConnection(voiceConnection2);
-
-        connection1.onUnhold();
-        connection2.onUnhold();
+        // Merging a call into an existing conference reuses it
+        Conference conference = connection1.getConference() != null ? connection1.getConference() : connection2.getConference();
+        if (conference instanceof VoiceConference) {
+            ((VoiceConference) conference).join(voiceConnection1, voiceConnection2);
+            return;
+        }
 
+        VoiceConference voiceConference = new VoiceConference(phoneAccountHandle);
+        voiceConference.join(voiceConnection1, voiceConnection2);
         this.addConference(voiceConference);
     }
 
     /*
      * Send call request to the RNCallKeepModule
      */
-    private void sendCallRequestToActivity(final String action, @Nullable final HashMap attributeMap) {
-        final VoiceConnectionService instance = this;
-        final Handler handler = new Handler();
-
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                Intent intent = new Intent(action);
-                if (attributeMap != null) {
-                    Bundle extras = new Bundle();
-                    extras.putSerializable("attributeMap", attributeMap);
-                    intent.putExtras(extras);
-                }
-                LocalBroadcastManager.getInstance(instance).sendBroadcast(intent);
-            }
-        });
-    }
-
-    private HashMap<String, String> bundleToMap(Bundle extras) {
-        HashMap<String, String> extrasMap = new HashMap<>();
-        Set<String> keySet = extras.keySet();
-        Iterator<String> iterator = keySet.iterator();
-
-        while(iterator.hasNext()) {
-            String key = iterator.next();
-            if (extras.get(key) != null) {
-                extrasMap.put(key, extras.get(key).toString());
-            }
-        }
-        return extrasMap;
+    private void sendCallRequestToActivity(final String action, @Nullable final HashMap<String, String> attributeMap) {
+        CallEventBus.post(CallEvent.fromAttributes(action, attributeMap));
     }
 
     /**
-     * https://stackoverflow.com/questions/5446565/android-how-do-i-check-if-activity-is-running
-     *
      * @param context Context
-     * @return boolean
+     * @return true if the application has an activity in the foreground
      */
     public static boolean isRunning(Context context) {
-        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-        List<RunningTaskInfo> tasks = activityManager.getRunningTasks(Integer.MAX_VALUE);
-
-        for (RunningTaskInfo task : tasks) {
-            if (context.getPackageName().equalsIgnoreCase(task.baseActivity.getPackageName()))
-                return true;
-        }
-
-        return false;
+        return ForegroundTracker.isForeground();
     }
 }
@@ -0,0 +1,194 @@
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Shares a single partial wake lock between per-call leases.
+ *
+ * A lease is reference counted per call UUID and expires after a timeout, whichever comes first.
+ * The wake lock is held while at least one lease is active and released with the last one, when
+ * the call ends. The wake lock itself is always acquired with the timeout of the longest lease, so
+ * the system releases it even if this process stops managing it.
+ *
+ * Lease and wake lock held times are recorded to account for the battery cost of each call.
+ */
+public class WakeLockManager {
+    private static final String TAG = "FLT:WakeLockManager";
+    private static final String WAKE_LOCK_TAG = "callkeep:call";
+    public static final long DEFAULT_TIMEOUT_MS = 60000;
+    // Key of the leases that are not bound to a call
+    private static final String NO_CALL = "";
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final Runnable expire = WakeLockManager::expireLeases;
+
+    // Guarded by the class
+    private static final HashMap<String, Lease> leases = new HashMap<>();
+    private static PowerManager.WakeLock wakeLock = null;
+    private static long timeoutMs = DEFAULT_TIMEOUT_MS;
+    private static long heldSince = 0;
+    private static long releasesAt = 0;
+    private static long totalHeldMs = 0;
+    private static int expiredLeases = 0;
+
+    private static final long[] HELD_TIME_BUCKETS_MS = {
+            1000, 5000, 10000, 30000, 60000, 300000, 600000, 1800000, 3600000, Long.MAX_VALUE
+    };
+    private static final LatencyHistogram leaseHeldTime = new LatencyHistogram(HELD_TIME_BUCKETS_MS);
+    private static final LatencyHistogram wakeLockHeldTime = new LatencyHistogram(HELD_TIME_BUCKETS_MS);
+
+    public static synchronized void configure(long timeoutMs) {
+        WakeLockManager.timeoutMs = timeoutMs > 0 ? timeoutMs : DEFAULT_TIMEOUT_MS;
+    }
+
+    /**
+     * Takes a lease for the given call with the configured timeout.
+     */
+    public static void acquire(Context context, @Nullable String uuid) {
+        long timeout;
+        synchronized (WakeLockManager.class) {
+            timeout = timeoutMs;
+        }
+        acquire(context, uuid, timeout);
+    }
+
+    /**
+     * Takes a lease for the given call. An active lease of the same call is extended if needed.
+     */
+    public static synchronized void acquire(Context context, @Nullable String uuid, long timeoutMs) {
+        String key = uuid != null ? uuid : NO_CALL;
+        long now = SystemClock.elapsedRealtime();
+        long expiresAt = now + timeoutMs;
+
+        Lease lease = leases.get(key);
+        if (lease == null) {
+            lease = new Lease(now);
+            leases.put(key, lease);
+        }
+        lease.count++;
+        lease.expiresAt = Math.max(lease.expiresAt, expiresAt);
+
+        if (wakeLock == null) {
+            PowerManager powerManager = (PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+            wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WAKE_LOCK_TAG);
+            wakeLock.setReferenceCounted(false);
+        }
+        if (heldSince == 0) {
+            heldSince = now;
+        }
+        if (lease.expiresAt > releasesAt) {
+            // Re-acquiring replaces the timeout of a non reference counted wake lock
+            wakeLock.acquire(lease.expiresAt - now);
+            releasesAt = lease.expiresAt;
+        }
+        scheduleExpiry(now);
+    }
+
+    /**
+     * Releases one lease of the given call.
+     */
+    public static synchronized void release(@Nullable String uuid) {
+        String key = uuid != null ? uuid : NO_CALL;
+        Lease lease = leases.get(key);
+        if (lease == null) {
+            return;
+        }
+        if (--lease.count <= 0) {
+            endLease(key, lease, SystemClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * Releases every lease of the given call, when it ends.
+     */
+    public static synchronized void releaseCall(@Nullable String uuid) {
+        String key = uuid != null ? uuid : NO_CALL;
+        Lease lease = leases.get(key);
+        if (lease != null) {
+            endLease(key, lease, SystemClock.elapsedRealtime());
+        }
+    }
+
+    public static synchronized ConstraintsMap toConstraintsMap() {
+        long now = SystemClock.elapsedRealtime();
+        ConstraintsMap metrics = new ConstraintsMap();
+        metrics.putBoolean("held", heldSince != 0);
+        metrics.putInt("activeLeases", leases.size());
+        metrics.putInt("expiredLeases", expiredLeases);
+        metrics.putDouble("totalHeldMs", totalHeldMs + (heldSince != 0 ? now - heldSince : 0));
+        metrics.putMap("leaseHeld", leaseHeldTime.toConstraintsMap().toMap());
+        metrics.putMap("wakeLockHeld", wakeLockHeldTime.toConstraintsMap().toMap());
+        return metrics;
+    }
+
+    public static synchronized void resetMetrics() {
+        totalHeldMs = 0;
+        expiredLeases = 0;
+        leaseHeldTime.reset();
+        wakeLockHeldTime.reset();
+    }
+
+    private static synchronized void expireLeases() {
+        long now = SystemClock.elapsedRealtime();
+        for (String key : leases.keySet().toArray(new String[0])) {
+            Lease lease = leases.get(key);
+            if (lease.expiresAt <= now) {
+                CallKeepLog.w(TAG, "Wake lock lease expired: {}", key.isEmpty() ? "no call" : key);
+                expiredLeases++;
+                endLease(key, lease, now);
+            }
+        }
+        if (!leases.isEmpty()) {
+            scheduleExpiry(now);
+        }
+    }
+
+    private static void endLease(String key, Lease lease, long now) {
+        leases.remove(key);
+        leaseHeldTime.record((now - lease.acquiredAt) * 1000000L);
+        if (!leases.isEmpty()) {
+            return;
+        }
+
+        handler.removeCallbacks(expire);
+        if (wakeLock != null && wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+        if (heldSince != 0) {
+            long heldMs = now - heldSince;
+            totalHeldMs += heldMs;
+            wakeLockHeldTime.record(heldMs * 1000000L);
+            heldSince = 0;
+        }
+        releasesAt = 0;
+    }
+
+    private static void scheduleExpiry(long now) {
+        long next = Long.MAX_VALUE;
+        for (Lease lease : leases.values()) {
+            next = Math.min(next, lease.expiresAt);
+        }
+        handler.removeCallbacks(expire);
+        handler.postDelayed(expire, Math.max(0, next - now));
+    }
+
+    private static class Lease {
+        final long acquiredAt;
+        long expiresAt = 0;
+        int count = 0;
+
+        Lease(long acquiredAt) {
+            this.acquiredAt = acquiredAt;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package io.wazo.callkeep.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import io.flutter.plugin.common.StandardMessageCodec;
+
+/**
+ * Compact variant of the StandardMessageCodec used by the CallKeep channels once negotiated in
+ * setup.
+ *
+ * Well-known strings (argument keys, event and method names) are written as a one byte tag and
+ * canonical lowercase UUIDs as 16 raw bytes. Every other value falls back to the standard
+ * encoding. The tag table must stay in sync with CallKeepMessageCodec in lib/src/codec.dart and
+ * may only be appended to.
+ */
+public class CallKeepMessageCodec extends StandardMessageCodec {
+    public static final CallKeepMessageCodec INSTANCE = new CallKeepMessageCodec();
+
+    private static final byte TAG = (byte) 128;
+    private static final byte UUID = (byte) 129;
+
+    private static final String[] TAGS = {
+            // argument and event keys
+            "uuid", "callUUID", "handle", "name", "localizedCallerName", "callerName", "number",
+            "muted", "hold", "digits", "reason", "displayName", "key", "state", "options",
+            "event", "body",
+            // events
+            "CallKeepDidReceiveStartCallAction", "CallKeepPerformAnswerCallAction",
+            "CallKeepPerformEndCallAction", "CallKeepDidActivateAudioSession",
+            "CallKeepDidPerformSetMutedCallAction", "CallKeepDidToggleHoldAction",
+            "CallKeepDidPerformDTMFAction", "CallKeepCheckReachability", "CallKeepEventBatch",
+            // methods
+            "displayIncomingCall", "answerIncomingCall", "startCall", "endCall", "endAllCalls",
+            "setOnHold", "reportEndCallWithUUID", "rejectCall", "setMutedCall", "sendDTMF",
+            "updateDisplay", "setCurrentCallActive", "setReachable", "setAvailable",
+            "hasPhoneAccount", "hasOutgoingCall", "isCallActive",
+            "getMetrics", "resetMetrics",
+            "batchCallControl", "commands", "aggregateEvents", "method", "success", "error",
+            "CallKeepDidChangeConference", "conferenceId", "members", "added", "removed",
+            "disconnected", "active",
+            "dumpFlightRecorder", "entries", "action", "payload", "time",
+            "CallKeepDidPerformBatchCallControl",
+    };
+    private static final HashMap<String, Integer> TAG_INDEX = new HashMap<>();
+
+    static {
+        for (int i = 0; i < TAGS.length; i++) {
+            TAG_INDEX.put(TAGS[i], i);
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    @Override
+    protected void writeValue(ByteArrayOutputStream stream, Object value) {
+        if (value instanceof String) {
+            String string = (String) value;
+            Integer tag = TAG_INDEX.get(string);
+            if (tag != null) {
+                stream.write(TAG);
+                stream.write(tag);
+                return;
+            }
+            if (isUuid(string)) {
+                stream.write(UUID);
+                writeUuid(stream, string);
+                return;
+            }
+        }
+        super.writeValue(stream, value);
+    }
+
+    @Override
+    protected Object readValueOfType(byte type, ByteBuffer buffer) {
+        switch (type) {
+            case TAG:
+                return TAGS[buffer.get() & 0xff];
+            case UUID:
+                return readUuid(buffer);
+            default:
+                return super.readValueOfType(type, buffer);
+        }
+    }
+
+    /**
+     * Only canonical lowercase UUIDs are packed, so the decoded string is always identical.
+     */
+    private static boolean isUuid(String value) {
+        if (value.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = value.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeUuid(ByteArrayOutputStream stream, String value) {
+        int i = 0;
+        while (i < 36) {
+            if (value.charAt(i) == '-') {
+                i++;
+                continue;
+            }
+            stream.write((hexValue(value.charAt(i)) << 4) | hexValue(value.charAt(i + 1)));
+            i += 2;
+        }
+    }
+
+    private static String readUuid(ByteBuffer buffer) {
+        char[] chars = new char[36];
+        int position = 0;
+        for (int i = 0; i < 16; i++) {
+            if (i == 4 || i == 6 || i == 8 || i == 10) {
+                chars[position++] = '-';
+            }
+            int b = buffer.get() & 0xff;
+            chars[position++] = HEX[b >> 4];
+            chars[position++] = HEX[b & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    private static int hexValue(char c) {
+        return c <= '9' ? c - '0' : c - 'a' + 10;
+    }
+}
@@ -37,10 +37,42 @@ public class ConstraintsMap {
     }
 
     public int getInt(String name) {
-        if(getType(name) == ObjectType.String) {
-            return Integer.parseInt(((String)mMap.get(name)));
+        Object value = mMap.get(name);
+        if (value instanceof String) {
+            return Integer.parseInt((String) value);
         }
-        return (int) mMap.get(name);
+        return ((Number) value).intValue();
+    }
+
+    public boolean getBoolean(String name, boolean fallback) {
+        Object value = mMap.get(name);
+        return value instanceof Boolean ? (Boolean) value : fallback;
+    }
+
+    public double getDouble(String name, double fallback) {
+        Object value = mMap.get(name);
+        return value instanceof Number ? ((Number) value).doubleValue() : fallback;
+    }
+
+    public int getInt(String name, int fallback) {
+        Object value = mMap.get(name);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value instanceof String) {
+            return Integer.parseInt((String) value);
+        }
+        return fallback;
+    }
+
+    public long getLong(String name, long fallback) {
+        Object value = mMap.get(name);
+        return value instanceof Number ? ((Number) value).longValue() : fallback;
+    }
+
+    public String getString(String name, String fallback) {
+        Object value = mMap.get(name);
+        return value instanceof String ? (String) value : fallback;
     }
 
     public String getString(String name){
@@ -89,6 +121,10 @@ public class ConstraintsMap {
         mMap.put(key, value);
     }
 
+    public void putLong(String key, long value) {
+        mMap.put(key, value);
+    }
+
     public void putString(String key, String value) {
         mMap.put(key, value);
     }
@@ -0,0 +1,56 @@
+package io.wazo.callkeep.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Result wrapper that may be completed from any thread.
+ *
+ * The reply is always delivered on the main thread, as required by the Flutter engine, and only
+ * the first reply is delivered so an operation failing after it replied cannot answer twice.
+ */
+public class MainThreadResult implements MethodChannel.Result {
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final MethodChannel.Result result;
+    private final AtomicBoolean replied = new AtomicBoolean(false);
+
+    public MainThreadResult(MethodChannel.Result result) {
+        this.result = result;
+    }
+
+    @Override
+    public void success(@Nullable final Object value) {
+        if (replied.compareAndSet(false, true)) {
+            runOnMainThread(() -> result.success(value));
+        }
+    }
+
+    @Override
+    public void error(final String errorCode, @Nullable final String errorMessage, @Nullable final Object errorDetails) {
+        if (replied.compareAndSet(false, true)) {
+            runOnMainThread(() -> result.error(errorCode, errorMessage, errorDetails));
+        }
+    }
+
+    @Override
+    public void notImplemented() {
+        if (replied.compareAndSet(false, true)) {
+            runOnMainThread(result::notImplemented);
+        }
+    }
+
+    private static void runOnMainThread(Runnable runnable) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            runnable.run();
+        } else {
+            mainHandler.post(runnable);
+        }
+    }
+}
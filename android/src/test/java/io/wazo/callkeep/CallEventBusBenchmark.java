@@ -0,0 +1,56 @@
+package io.wazo.callkeep;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static io.wazo.callkeep.Constants.ACTION_HOLD_CALL;
+
+/**
+ * Synchronous dispatch of an event posted from the main thread to a registered listener. The
+ * mockable android.jar returns the same (null) looper for the current and the main thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallEventBusBenchmark {
+    private CallEventBus.Listener listener;
+    private CallEvent event;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        listener = new CallEventBus.Listener() {
+            @Override
+            public void onCallEvent(CallEvent event) {
+                blackhole.consume(event);
+            }
+        };
+        CallEventBus.register(listener);
+        event = new CallEvent(ACTION_HOLD_CALL, UUID.randomUUID().toString(), null, null, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        CallEventBus.unregister(listener);
+    }
+
+    @Benchmark
+    public void post() {
+        CallEventBus.post(event);
+    }
+}
@@ -0,0 +1,120 @@
+package io.wazo.callkeep;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class CallJournalTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Header byte, then the records of the first segment: type, uuid length, uuid
+    private static final int FIRST_RECORD = 1;
+    private static final byte ADDED = 1;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "callkeep.journal");
+    }
+
+    @Test
+    public void replaysTheCallsAddedAndNotRemoved() {
+        CallJournal journal = open();
+        journal.recordAdded("a");
+        journal.recordAdded("b");
+        journal.recordAdded("c");
+        journal.recordRemoved("b");
+        journal.recordRemoved("unknown");
+        journal.recordAdded(null);
+
+        assertEquals(Arrays.asList("a", "c"), lost(open()));
+    }
+
+    @Test
+    public void reconcileKeepsOnlyTheRegisteredCalls() {
+        CallJournal journal = open();
+        journal.recordAdded("a");
+        journal.recordAdded("b");
+
+        assertEquals(Collections.singletonList("a"), open().reconcile(Collections.singletonList("b")));
+        assertEquals(Collections.singletonList("b"), lost(open()));
+    }
+
+    @Test
+    public void journalsTheCallsRegisteredBeforeItWasAttached() {
+        CallRegistry registry = new CallRegistry();
+        registry.put("a", CallRegistryBenchmark.connection("a"));
+        registry.put("b", CallRegistryBenchmark.connection("b"));
+        registry.remove("b");
+        registry.attachJournal(open());
+        registry.put("c", CallRegistryBenchmark.connection("c"));
+
+        assertEquals(Arrays.asList("a", "c"), lost(open()));
+    }
+
+    @Test
+    public void ignoresATornRecordAndWhatFollowsIt() throws IOException {
+        CallJournal journal = open();
+        journal.recordAdded("a");
+
+        // Killed while appending "b": its type byte was never written
+        int torn = FIRST_RECORD + 2 + "a".length();
+        write(torn, (byte) 0, "b");
+        // Stale bytes after the end of the segment
+        write(torn + 2 + "b".length(), ADDED, "c");
+
+        CallJournal replayed = open();
+        replayed.recordAdded("d");
+        assertEquals(Arrays.asList("a", "d"), lost(open()));
+    }
+
+    @Test
+    public void compactsOnceTheSegmentIsFull() {
+        CallJournal journal = open();
+        journal.recordAdded("first");
+        // Thousands of records overflow a segment several times
+        for (int i = 0; i < 5000; i++) {
+            String uuid = String.format("%08d-0000-0000-0000-000000000000", i);
+            journal.recordAdded(uuid);
+            journal.recordRemoved(uuid);
+        }
+        journal.recordAdded("last");
+
+        assertEquals(Arrays.asList("first", "last"), lost(open()));
+    }
+
+    private CallJournal open() {
+        CallJournal journal = CallJournal.open(file);
+        assertNotNull(journal);
+        return journal;
+    }
+
+    private static List<String> lost(CallJournal journal) {
+        return journal.reconcile(Collections.<String>emptyList());
+    }
+
+    private void write(int offset, byte type, String uuid) throws IOException {
+        byte[] bytes = uuid.getBytes(UTF_8);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(offset);
+            randomAccessFile.write(type);
+            randomAccessFile.write(bytes.length);
+            randomAccessFile.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package io.wazo.callkeep;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import io.flutter.plugin.common.StandardMessageCodec;
+import io.wazo.callkeep.utils.CallKeepMessageCodec;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Encoding and decoding of a typical event with the standard codec and the compact one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallKeepMessageCodecBenchmark {
+    @Param({"standard", "compact"})
+    public String codecName;
+
+    private StandardMessageCodec codec;
+    private Map<String, Object> event;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setUp() {
+        codec = codecName.equals("compact") ? CallKeepMessageCodec.INSTANCE : StandardMessageCodec.INSTANCE;
+        event = event(UUID.randomUUID().toString());
+        encoded = codec.encodeMessage(event);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return codec.encodeMessage(event);
+    }
+
+    @Benchmark
+    public Object decode() {
+        encoded.rewind();
+        return codec.decodeMessage(encoded);
+    }
+
+    /**
+     * @return a batched event, as queued by the CallKeepModule
+     */
+    static Map<String, Object> event(String uuid) {
+        ConstraintsMap body = new ConstraintsMap();
+        body.putBoolean("hold", true);
+        body.putString("callUUID", uuid);
+        ConstraintsMap event = new ConstraintsMap();
+        event.putString("event", "CallKeepDidToggleHoldAction");
+        event.putMap("body", body.toMap());
+        return event.toMap();
+    }
+}
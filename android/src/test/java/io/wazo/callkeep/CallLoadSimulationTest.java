@@ -0,0 +1,711 @@
+package io.wazo.callkeep;
+
+import android.Manifest;
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Looper;
+import android.telecom.CallAudioState;
+import android.telecom.Connection;
+import android.telecom.ConnectionRequest;
+import android.telecom.TelecomManager;
+
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+import io.flutter.plugin.common.StandardMethodCodec;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Load simulation driving randomized call lifecycles through the real entry points: the method
+ * calls of the Dart side into CallKeepModule.HandleMethodCall, the connections Telecom asks
+ * VoiceConnectionService for, and the actions of the native call UI on the VoiceConnections.
+ * LoadTelecomManager stands in for Telecom.
+ *
+ * Each call is incoming or outgoing, is answered or rejected, is held, muted and sent DTMF digits a
+ * random number of times, from the application or the native UI, and ends from either side. Up to
+ * CONCURRENCY calls are live at once. The test thread is the main thread, it pumps the main looper
+ * while the executor threads run.
+ *
+ * Reports the throughput, the p50/p99 latency and main-thread allocations of each operation, the
+ * allocations of the whole run and what the ended calls left behind, then checks the events
+ * delivered to Dart. Run a larger simulation with:
+ *
+ * ./gradlew testDebugUnitTest --tests '*CallLoadSimulationTest' -Pcallkeep.load.calls=20000 -Pcallkeep.load.concurrency=64
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE, shadows = LoadTelecomManager.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class CallLoadSimulationTest {
+    private static final int CALLS = Integer.getInteger("callkeep.load.calls", 1000);
+    private static final int WARMUP_CALLS = Integer.getInteger("callkeep.load.warmup", 200);
+    private static final int CONCURRENCY = Integer.getInteger("callkeep.load.concurrency", 16);
+    private static final long SEED = Long.getLong("callkeep.load.seed", 42);
+    private static final long TIMEOUT_MS = Long.getLong("callkeep.load.timeoutMs", 10 * 60 * 1000);
+
+    private static final String EVENT_CHANNEL = "FlutterCallKeep.Event";
+    private static final String END_EVENT = "CallKeepPerformEndCallAction";
+    private static final String ANSWER_EVENT = "CallKeepPerformAnswerCallAction";
+    private static final String DTMF_EVENT = "CallKeepDidPerformDTMFAction";
+    private static final String HOLD_EVENT = "CallKeepDidToggleHoldAction";
+    private static final String MUTE_EVENT = "CallKeepDidPerformSetMutedCallAction";
+    private static final String CREATE_CONNECTION = "createConnection";
+
+    private enum Step {
+        DISPLAY, START, CONNECTED, ANSWER, ACTIVATE, HOLD, MUTE, DTMF, REJECT, END, REPORT_END
+    }
+
+    private static final class Action {
+        final Step step;
+        // Taken in the native call UI rather than by the application
+        final boolean fromCallUi;
+
+        Action(Step step, boolean fromCallUi) {
+            this.step = step;
+            this.fromCallUi = fromCallUi;
+        }
+    }
+
+    private static final class SimulatedCall {
+        final String uuid = UUID.randomUUID().toString();
+        final String number;
+        final ArrayDeque<Action> actions = new ArrayDeque<>();
+        @Nullable Connection connection;
+        boolean busy = false;
+        boolean muted = false;
+        boolean held = false;
+        boolean answered = false;
+        boolean endEventExpected = false;
+        int dtmfSent = 0;
+
+        SimulatedCall(String number) {
+            this.number = number;
+        }
+    }
+
+    /**
+     * Latency and main-thread allocation samples of one operation.
+     */
+    private static final class Samples {
+        private long[] nanos = new long[256];
+        private long allocatedBytes = 0;
+        private int allocations = 0;
+        private int count = 0;
+
+        void add(long latencyNanos) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = latencyNanos;
+        }
+
+        void addAllocated(long bytes) {
+            allocatedBytes += bytes;
+            allocations++;
+        }
+
+        double percentileMicros(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            int index = Math.max(0, (int) Math.ceil(count * percentile) - 1);
+            return sorted[index] / 1000.0;
+        }
+    }
+
+    /**
+     * Keeps the events sent to Dart, they are decoded once the simulation is over.
+     */
+    private static final class RecordingMessenger implements BinaryMessenger {
+        final ArrayList<ByteBuffer> events = new ArrayList<>();
+
+        @Override
+        public void send(String channel, ByteBuffer message) {
+            send(channel, message, null);
+        }
+
+        @Override
+        public synchronized void send(String channel, ByteBuffer message, @Nullable BinaryReply callback) {
+            if (EVENT_CHANNEL.equals(channel)) {
+                events.add(message);
+            }
+        }
+
+        @Override
+        public void setMessageHandler(String channel, @Nullable BinaryMessageHandler handler) {
+        }
+    }
+
+    private final Random random = new Random(SEED);
+    private final LinkedHashMap<String, Samples> samples = new LinkedHashMap<>();
+    private final HashMap<String, SimulatedCall> calls = new HashMap<>();
+    private final List<SimulatedCall> live = new ArrayList<>();
+    private final List<String> failures = new ArrayList<>();
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private RecordingMessenger messenger;
+    private VoiceConnectionService service;
+    private LoadTelecomManager telecom;
+    private CallKeepModule module;
+    private long liveCallsAtCreation = 0;
+    private long pumpedAt = System.nanoTime();
+
+    @Before
+    public void setUp() {
+        Application application = RuntimeEnvironment.application;
+        application.getApplicationInfo().nonLocalizedLabel = "CallKeep load";
+        shadowOf(application).grantPermissions(Manifest.permission.READ_PHONE_STATE,
+                Manifest.permission.CALL_PHONE, Manifest.permission.RECORD_AUDIO);
+        telecom = Shadow.extract(application.getSystemService(Context.TELECOM_SERVICE));
+
+        // Bound by Telecom ahead of the first call
+        service = Robolectric.setupService(VoiceConnectionService.class);
+        messenger = new RecordingMessenger();
+        module = new CallKeepModule(application, messenger);
+        module.setActivity(Robolectric.buildActivity(Activity.class).setup().get());
+
+        ConstraintsMap options = new ConstraintsMap();
+        options.putString("logLevel", "none");
+        invokeAndWait("setup", map("options", options.toMap()));
+        invokeAndWait("setReachable", null);
+    }
+
+    @After
+    public void tearDown() {
+        module.dispose();
+    }
+
+    @Test
+    public void simulatesCallLifecycles() {
+        // Loads and compiles the code paths, the warmup calls are checked but not measured
+        simulate(WARMUP_CALLS);
+        samples.clear();
+        liveCallsAtCreation = 0;
+
+        Map<Long, Long> allocatedBefore = threadAllocations();
+        long startedAt = System.nanoTime();
+        int operations = simulate(CALLS);
+        long elapsedNanos = System.nanoTime() - startedAt;
+        long allocated = allocatedSince(allocatedBefore);
+
+        awaitQuiescence();
+        ConstraintsMap leaks = leaks();
+        report(operations, elapsedNanos, allocated, leaks);
+
+        checkEvents();
+        assertEquals("[]", failures.toString());
+        assertEquals("{activeQueues=0, conferenceables=0, pendingOperations=0, pendingToggles=0, "
+                + "registry=0, wakeLockLeases=0}", new TreeMap<>(leaks.toMap()).toString());
+    }
+
+    /**
+     * Runs the given number of calls to their end, CONCURRENCY at a time.
+     *
+     * @return the number of operations performed
+     */
+    private int simulate(int count) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        int started = 0;
+        int ended = 0;
+        int operations = 0;
+        while (ended < count) {
+            if (System.nanoTime() > deadline) {
+                failures.add("timed out with " + live.size() + " live calls, " + describe(live));
+                live.clear();
+                break;
+            }
+            boolean progressed = false;
+            while (live.size() < CONCURRENCY && started < count) {
+                live.add(plan(calls.size()));
+                started++;
+                progressed = true;
+            }
+
+            progressed |= serveTelecom();
+            for (int i = live.size() - 1; i >= 0; i--) {
+                SimulatedCall call = live.get(i);
+                if (call.busy || !ready(call)) {
+                    continue;
+                }
+                if (call.actions.isEmpty()) {
+                    live.remove(i);
+                    ended++;
+                } else {
+                    perform(call, call.actions.poll());
+                    operations++;
+                }
+                progressed = true;
+            }
+
+            progressed |= pump();
+            if (!progressed) {
+                // Operations are running on the executor threads
+                LockSupport.parkNanos(20000);
+            }
+        }
+        return operations;
+    }
+
+    private SimulatedCall plan(int index) {
+        SimulatedCall call = new SimulatedCall(String.format(Locale.US, "+3310000%05d", index % 100000));
+        calls.put(call.uuid, call);
+        boolean incoming = random.nextBoolean();
+        if (incoming) {
+            call.actions.add(new Action(Step.DISPLAY, false));
+            call.actions.add(new Action(Step.CONNECTED, true));
+            if (random.nextInt(100) < 15) {
+                call.actions.add(new Action(Step.REJECT, random.nextBoolean()));
+                return call;
+            }
+            call.actions.add(new Action(Step.ANSWER, random.nextBoolean()));
+        } else {
+            call.actions.add(new Action(Step.START, false));
+            call.actions.add(new Action(Step.CONNECTED, true));
+            call.actions.add(new Action(Step.ACTIVATE, false));
+        }
+
+        int midCall = random.nextInt(7);
+        for (int i = 0; i < midCall; i++) {
+            Step step = new Step[]{Step.HOLD, Step.MUTE, Step.DTMF}[random.nextInt(3)];
+            call.actions.add(new Action(step, random.nextBoolean()));
+        }
+
+        int end = random.nextInt(3);
+        call.actions.add(end == 2 ? new Action(Step.REPORT_END, false) : new Action(Step.END, end == 1));
+        return call;
+    }
+
+    /*
+     * The actions on a connection wait for Telecom to have created it
+     */
+    private static boolean ready(SimulatedCall call) {
+        Action next = call.actions.peek();
+        return next == null || next.step != Step.CONNECTED || call.connection != null;
+    }
+
+    private void perform(SimulatedCall call, Action action) {
+        switch (action.step) {
+            case DISPLAY:
+                invoke(call, "displayIncomingCall", map("uuid", call.uuid, "handle", call.number,
+                        "localizedCallerName", "Caller " + call.number));
+                break;
+            case START:
+                invoke(call, "startCall", map("uuid", call.uuid, "number", call.number, "callerName", "Callee"));
+                break;
+            case CONNECTED:
+                // Played by serveTelecom()
+                break;
+            case ANSWER:
+                call.answered = true;
+                if (action.fromCallUi) {
+                    onNativeUi(call, "answer", call.connection::onAnswer);
+                } else {
+                    invoke(call, "answerIncomingCall", map("uuid", call.uuid));
+                }
+                break;
+            case ACTIVATE:
+                invoke(call, "setCurrentCallActive", map("uuid", call.uuid));
+                break;
+            case HOLD:
+                call.held = !call.held;
+                if (action.fromCallUi) {
+                    onNativeUi(call, call.held ? "hold" : "unhold",
+                            call.held ? call.connection::onHold : call.connection::onUnhold);
+                } else {
+                    invoke(call, "setOnHold", map("uuid", call.uuid, "hold", call.held));
+                }
+                break;
+            case MUTE:
+                call.muted = !call.muted;
+                if (action.fromCallUi) {
+                    final CallAudioState state = audioState(call.muted);
+                    onNativeUi(call, "mute", () -> setCallAudioState(call.connection, state));
+                } else {
+                    invoke(call, "setMutedCall", map("uuid", call.uuid, "muted", call.muted));
+                }
+                break;
+            case DTMF:
+                final char digit = (char) ('0' + random.nextInt(10));
+                call.dtmfSent++;
+                if (action.fromCallUi) {
+                    onNativeUi(call, "dtmf", () -> call.connection.onPlayDtmfTone(digit));
+                } else {
+                    invoke(call, "sendDTMF", map("uuid", call.uuid, "key", String.valueOf(digit)));
+                }
+                break;
+            case REJECT:
+                call.endEventExpected = true;
+                if (action.fromCallUi) {
+                    onNativeUi(call, "reject", call.connection::onReject);
+                } else {
+                    invoke(call, "rejectCall", map("uuid", call.uuid));
+                }
+                break;
+            case END:
+                call.endEventExpected = true;
+                if (action.fromCallUi) {
+                    onNativeUi(call, "disconnect", call.connection::onDisconnect);
+                } else {
+                    invoke(call, "endCall", map("uuid", call.uuid));
+                }
+                break;
+            case REPORT_END:
+                // Remote end, reported by the application
+                invoke(call, "reportEndCallWithUUID", map("uuid", call.uuid, "reason", 2));
+                break;
+        }
+    }
+
+    /**
+     * Plays Telecom: asks the ConnectionService for the connections of the calls added or placed,
+     * then reports the initial audio state as Telecom does once the call is set up.
+     */
+    private boolean serveTelecom() {
+        boolean served = false;
+        LoadTelecomManager.Request request;
+        while ((request = telecom.poll()) != null) {
+            served = true;
+            ConnectionRequest connectionRequest = new ConnectionRequest(request.handle, request.address, request.extras);
+            liveCallsAtCreation += VoiceConnectionService.currentConnections.size();
+            long allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long startedAt = System.nanoTime();
+            Connection connection = request.incoming
+                    ? service.onCreateIncomingConnection(request.handle, connectionRequest)
+                    : service.onCreateOutgoingConnection(request.handle, connectionRequest);
+            Samples operation = samples(CREATE_CONNECTION);
+            operation.add(System.nanoTime() - startedAt);
+            operation.addAllocated(threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore);
+
+            String uuid = request.extras.getString(Constants.EXTRA_CALL_UUID);
+            SimulatedCall call = calls.get(uuid);
+            if (call == null || !(connection instanceof VoiceConnection)) {
+                failures.add("no connection created for " + uuid + ": " + connection);
+                continue;
+            }
+            setCallAudioState(connection, audioState(false));
+            call.connection = connection;
+        }
+        return served;
+    }
+
+    private void invoke(final SimulatedCall call, final String method, @Nullable Map<String, Object> arguments) {
+        call.busy = true;
+        final Samples operation = samples(method);
+        long allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        final long startedAt = System.nanoTime();
+        module.HandleMethodCall(new MethodCall(method, arguments), new MethodChannel.Result() {
+            @Override
+            public void success(Object result) {
+                operation.add(System.nanoTime() - startedAt);
+                call.busy = false;
+            }
+
+            @Override
+            public void error(String errorCode, String errorMessage, Object errorDetails) {
+                failures.add(method + " failed for " + call.uuid + ": " + errorCode + " " + errorMessage);
+                call.busy = false;
+            }
+
+            @Override
+            public void notImplemented() {
+                failures.add(method + " not implemented");
+                call.busy = false;
+            }
+        });
+        // Only what the entry point allocates on the main thread, the work it queued runs later
+        operation.addAllocated(threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore);
+    }
+
+    private void onNativeUi(SimulatedCall call, String operation, Runnable action) {
+        if (call.connection == null) {
+            failures.add(operation + " without connection for " + call.uuid);
+            return;
+        }
+        long allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long startedAt = System.nanoTime();
+        action.run();
+        Samples samples = samples("native " + operation);
+        samples.add(System.nanoTime() - startedAt);
+        samples.addAllocated(threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore);
+    }
+
+    /**
+     * Called by Telecom on the connections, hidden from the SDK.
+     */
+    private static void setCallAudioState(Connection connection, CallAudioState state) {
+        ReflectionHelpers.callInstanceMethod(connection, "setCallAudioState",
+                ReflectionHelpers.ClassParameter.from(CallAudioState.class, state));
+    }
+
+    private static CallAudioState audioState(boolean muted) {
+        return new CallAudioState(muted, CallAudioState.ROUTE_EARPIECE,
+                CallAudioState.ROUTE_EARPIECE | CallAudioState.ROUTE_SPEAKER);
+    }
+
+    private void invokeAndWait(String method, @Nullable Map<String, Object> arguments) {
+        SimulatedCall caller = new SimulatedCall("");
+        invoke(caller, method, arguments);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (caller.busy && System.nanoTime() < deadline) {
+            pump();
+            LockSupport.parkNanos(20000);
+        }
+        assertEquals("[]", failures.toString());
+        assertEquals(method + " completed", false, caller.busy);
+    }
+
+    /**
+     * Runs the main looper, with its clock kept in step with the time the executor threads run in,
+     * so the delayed tasks run when they would on a device.
+     *
+     * @return whether a task ran
+     */
+    private boolean pump() {
+        long now = System.nanoTime();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(now - pumpedAt);
+        ShadowLooper looper = shadowOf(Looper.getMainLooper());
+        boolean idle = looper.isIdle();
+        if (elapsedMillis > 0) {
+            pumpedAt += TimeUnit.MILLISECONDS.toNanos(elapsedMillis);
+            looper.idleFor(elapsedMillis, TimeUnit.MILLISECONDS);
+        } else {
+            looper.idle();
+        }
+        return !idle;
+    }
+
+    /*
+     * Lets the executor drain, and the timers of the ended calls run
+     */
+    private void awaitQuiescence() {
+        shadowOf(Looper.getMainLooper()).idleFor(5, TimeUnit.SECONDS);
+        for (int attempt = 0; attempt < 1000; attempt++) {
+            ConstraintsMap queues = metrics().getMap("queues");
+            if (queues.getInt("activeQueues") == 0 && queues.getInt("pending") == 0) {
+                break;
+            }
+            pump();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        shadowOf(Looper.getMainLooper()).idleFor(5, TimeUnit.SECONDS);
+    }
+
+    private ConstraintsMap metrics() {
+        final Object[] metrics = new Object[1];
+        module.HandleMethodCall(new MethodCall("getMetrics", null), new MethodChannel.Result() {
+            @Override
+            public void success(Object result) {
+                metrics[0] = result;
+            }
+
+            @Override
+            public void error(String errorCode, String errorMessage, Object errorDetails) {
+                failures.add("getMetrics failed: " + errorMessage);
+            }
+
+            @Override
+            public void notImplemented() {
+                failures.add("getMetrics not implemented");
+            }
+        });
+        @SuppressWarnings("unchecked")
+        Map<String, Object> result = (Map<String, Object>) metrics[0];
+        return new ConstraintsMap(result);
+    }
+
+    /**
+     * What the ended calls left behind.
+     */
+    private ConstraintsMap leaks() {
+        ConstraintsMap metrics = metrics();
+        ConstraintsMap queues = metrics.getMap("queues");
+        ConstraintsMap coalescing = metrics.getMap("coalescing");
+        ConstraintsMap wakeLocks = metrics.getMap("wakeLocks");
+
+        int conferenceables = 0;
+        for (SimulatedCall call : calls.values()) {
+            if (call.connection instanceof VoiceConnection) {
+                conferenceables += ((VoiceConnection) call.connection).copyConferenceables().size();
+            }
+        }
+
+        ConstraintsMap leaks = new ConstraintsMap();
+        leaks.putInt("registry", VoiceConnectionService.currentConnections.size());
+        leaks.putInt("conferenceables", conferenceables);
+        leaks.putInt("activeQueues", queues.getInt("activeQueues"));
+        leaks.putInt("pendingOperations", queues.getInt("pending"));
+        leaks.putInt("pendingToggles", coalescing.getInt("pending"));
+        leaks.putInt("wakeLockLeases", wakeLocks.getInt("activeLeases"));
+        return leaks;
+    }
+
+    /**
+     * Every call reports its DTMF digits, its answer and a single end, nothing after its end, and
+     * the last hold and mute states it reports are its final ones.
+     */
+    private void checkEvents() {
+        HashMap<String, List<String>> timelines = new HashMap<>();
+        HashMap<String, Boolean> lastHold = new HashMap<>();
+        HashMap<String, Boolean> lastMute = new HashMap<>();
+        for (ByteBuffer message : messenger.events) {
+            message.flip();
+            MethodCall event = StandardMethodCodec.INSTANCE.decodeMethodCall(message);
+            String uuid = event.argument("callUUID");
+            if (uuid == null) {
+                continue;
+            }
+            List<String> timeline = timelines.get(uuid);
+            if (timeline == null) {
+                timeline = new ArrayList<>();
+                timelines.put(uuid, timeline);
+            }
+            if (timeline.contains(END_EVENT)) {
+                failures.add(event.method + " after the end of " + uuid);
+            }
+            timeline.add(event.method);
+            if (HOLD_EVENT.equals(event.method)) {
+                lastHold.put(uuid, event.<Boolean>argument("hold"));
+            } else if (MUTE_EVENT.equals(event.method)) {
+                lastMute.put(uuid, event.<Boolean>argument("muted"));
+            }
+        }
+
+        for (SimulatedCall call : calls.values()) {
+            List<String> timeline = timelines.containsKey(call.uuid) ? timelines.get(call.uuid) : new ArrayList<String>();
+            check(call, END_EVENT, call.endEventExpected ? 1 : 0, timeline);
+            check(call, ANSWER_EVENT, call.answered ? 1 : 0, timeline);
+            check(call, DTMF_EVENT, call.dtmfSent, timeline);
+            if (lastHold.containsKey(call.uuid) && lastHold.get(call.uuid) != call.held) {
+                failures.add(call.uuid + " reported hold " + lastHold.get(call.uuid) + " last, " + timeline);
+            }
+            if (lastMute.containsKey(call.uuid) && lastMute.get(call.uuid) != call.muted) {
+                failures.add(call.uuid + " reported muted " + lastMute.get(call.uuid) + " last, " + timeline);
+            }
+        }
+    }
+
+    private void check(SimulatedCall call, String event, int expected, List<String> timeline) {
+        int count = 0;
+        for (String method : timeline) {
+            if (event.equals(method)) {
+                count++;
+            }
+        }
+        if (count != expected) {
+            failures.add(call.uuid + " reported " + count + " " + event + " instead of " + expected + ", " + timeline);
+        }
+    }
+
+    private void report(int operations, long elapsedNanos, long allocated, ConstraintsMap leaks) {
+        double seconds = elapsedNanos / 1e9;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "CallKeep load simulation: %d calls after %d warmup calls, %d concurrent, seed %d%n",
+                CALLS, WARMUP_CALLS, CONCURRENCY, SEED));
+        report.append(String.format(Locale.US, "  throughput: %.1f calls/s, %.1f operations/s over %.2f s%n",
+                CALLS / seconds, operations / seconds, seconds));
+        report.append(String.format(Locale.US, "  %-28s %8s %10s %10s %14s%n",
+                "operation", "count", "p50 us", "p99 us", "main B/op"));
+        for (Map.Entry<String, Samples> entry : samples.entrySet()) {
+            Samples operation = entry.getValue();
+            String allocation = operation.allocations == 0 ? "-"
+                    : String.valueOf(operation.allocatedBytes / operation.allocations);
+            report.append(String.format(Locale.US, "  %-28s %8d %10.1f %10.1f %14s%n", entry.getKey(), operation.count,
+                    operation.percentileMicros(0.50), operation.percentileMicros(0.99), allocation));
+        }
+        Samples created = samples(CREATE_CONNECTION);
+        report.append(String.format(Locale.US, "  %s: %.1f live calls on average%n", CREATE_CONNECTION,
+                created.count == 0 ? 0.0 : (double) liveCallsAtCreation / created.count));
+        report.append(String.format(Locale.US, "  allocated: %d KB, %d B per call (all threads, instrumented framework)%n",
+                allocated / 1024, allocated / Math.max(1, CALLS)));
+        report.append(String.format(Locale.US, "  events sent: %d%n", messenger.events.size()));
+        report.append("  left behind: ").append(leaks.toMap()).append('\n');
+        System.out.print(report);
+    }
+
+    private Samples samples(String operation) {
+        Samples operationSamples = samples.get(operation);
+        if (operationSamples == null) {
+            operationSamples = new Samples();
+            samples.put(operation, operationSamples);
+        }
+        return operationSamples;
+    }
+
+    private Map<Long, Long> threadAllocations() {
+        HashMap<Long, Long> allocations = new HashMap<>();
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; i++) {
+            allocations.put(ids[i], bytes[i]);
+        }
+        return allocations;
+    }
+
+    /**
+     * @return the bytes allocated by all threads since the given allocations of the threads
+     */
+    private long allocatedSince(Map<Long, Long> before) {
+        long total = 0;
+        for (Map.Entry<Long, Long> thread : threadAllocations().entrySet()) {
+            Long previous = before.get(thread.getKey());
+            total += thread.getValue() - (previous != null ? previous : 0);
+        }
+        return total;
+    }
+
+    private static String describe(List<SimulatedCall> calls) {
+        StringBuilder description = new StringBuilder();
+        for (SimulatedCall call : calls) {
+            Action next = call.actions.peek();
+            description.append(call.uuid).append(" at ").append(next != null ? next.step : "end")
+                    .append(call.busy ? " (running)" : "").append("; ");
+        }
+        return description.toString();
+    }
+
+    private static Map<String, Object> map(Object... keysAndValues) {
+        HashMap<String, Object> map = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return map;
+    }
+}
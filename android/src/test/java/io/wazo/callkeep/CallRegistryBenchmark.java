@@ -0,0 +1,82 @@
+package io.wazo.callkeep;
+
+import android.os.Bundle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static io.wazo.callkeep.Constants.EXTRA_CALL_NUMBER;
+import static io.wazo.callkeep.Constants.EXTRA_CALL_UUID;
+
+/**
+ * Lookups and registration churn with a number of live calls, each linked with all the others.
+ * createConnection is the part of VoiceConnectionService.createConnection that runs on the JVM:
+ * the Telecom setters of the connection are no-ops in the mockable android.jar.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallRegistryBenchmark {
+    @Param({"1", "8", "32"})
+    public int liveCalls;
+
+    private CallRegistry registry;
+    private String liveUuid;
+    private String churnedUuid;
+    private VoiceConnection churned;
+    private Bundle churnedExtras;
+
+    @Setup
+    public void setUp() {
+        registry = new CallRegistry();
+        for (int i = 0; i < liveCalls; i++) {
+            liveUuid = UUID.randomUUID().toString();
+            registry.put(liveUuid, connection(liveUuid));
+        }
+        churnedUuid = UUID.randomUUID().toString();
+        churned = connection(churnedUuid);
+        churnedExtras = ConnectionExtrasBenchmark.extras(churnedUuid, 8);
+    }
+
+    @Benchmark
+    public VoiceConnection get() {
+        return registry.get(liveUuid);
+    }
+
+    @Benchmark
+    public VoiceConnection putAndRemove() {
+        registry.put(churnedUuid, churned);
+        return registry.remove(churnedUuid);
+    }
+
+    @Benchmark
+    public VoiceConnection createConnection() {
+        ConnectionExtras connectionExtras = new ConnectionExtras(churnedExtras);
+        connectionExtras.put(EXTRA_CALL_NUMBER, "tel:+33100000000");
+        VoiceConnection connection = new VoiceConnection(null, connectionExtras);
+        registry.put(connectionExtras.getUuid(), connection);
+        return registry.remove(churnedUuid);
+    }
+
+    static VoiceConnection connection(String uuid) {
+        HashMap<String, String> attributes = new HashMap<>();
+        attributes.put(EXTRA_CALL_UUID, uuid);
+        return new VoiceConnection(null, ConnectionExtras.fromMap(attributes));
+    }
+}
@@ -0,0 +1,113 @@
+package io.wazo.callkeep;
+
+import android.os.Bundle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static io.wazo.callkeep.Constants.EXTRA_CALLER_NAME;
+import static io.wazo.callkeep.Constants.EXTRA_CALL_NUMBER;
+import static io.wazo.callkeep.Constants.EXTRA_CALL_UUID;
+
+/**
+ * Reading the uuid, number and name of a connection request, through the lazy ConnectionExtras
+ * view and through the copy of every extra that VoiceConnectionService.bundleToMap made before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionExtrasBenchmark {
+    // The extras Telecom and other apps add to the ones of the plugin
+    @Param({"0", "8"})
+    public int foreignExtras;
+
+    private Bundle extras;
+
+    @Setup
+    public void setUp() {
+        extras = extras(UUID.randomUUID().toString(), foreignExtras);
+    }
+
+    @Benchmark
+    public void connectionExtras(Blackhole blackhole) {
+        ConnectionExtras connectionExtras = new ConnectionExtras(extras);
+        blackhole.consume(connectionExtras.getUuid());
+        blackhole.consume(connectionExtras.getNumber());
+        blackhole.consume(connectionExtras.getName());
+    }
+
+    @Benchmark
+    public void bundleToMap(Blackhole blackhole) {
+        HashMap<String, String> extrasMap = bundleToMap(extras);
+        blackhole.consume(extrasMap.get(EXTRA_CALL_UUID));
+        blackhole.consume(extrasMap.get(EXTRA_CALL_NUMBER));
+        blackhole.consume(extrasMap.get(EXTRA_CALLER_NAME));
+    }
+
+    /**
+     * The former VoiceConnectionService.bundleToMap.
+     */
+    private static HashMap<String, String> bundleToMap(Bundle extras) {
+        HashMap<String, String> extrasMap = new HashMap<>();
+        Set<String> keySet = extras.keySet();
+        Iterator<String> iterator = keySet.iterator();
+
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            if (extras.get(key) != null) {
+                extrasMap.put(key, extras.get(key).toString());
+            }
+        }
+        return extrasMap;
+    }
+
+    /**
+     * @return the extras of a call placed by the plugin
+     */
+    static Bundle extras(String uuid, int foreignExtras) {
+        MapBundle extras = new MapBundle();
+        extras.values.put(EXTRA_CALL_UUID, uuid);
+        extras.values.put(EXTRA_CALL_NUMBER, "+33100000000");
+        extras.values.put(EXTRA_CALLER_NAME, "Caller");
+        for (int i = 0; i < foreignExtras; i++) {
+            extras.values.put("android.telecom.extra.FOREIGN_" + i, i);
+        }
+        return extras;
+    }
+
+    /**
+     * The mockable android.jar has no Bundle implementation.
+     */
+    private static final class MapBundle extends Bundle {
+        final HashMap<String, Object> values = new HashMap<>();
+
+        @Override
+        public Set<String> keySet() {
+            return values.keySet();
+        }
+
+        @Override
+        public Object get(String key) {
+            return values.get(key);
+        }
+    }
+}
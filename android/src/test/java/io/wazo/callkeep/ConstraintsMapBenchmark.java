@@ -0,0 +1,90 @@
+package io.wazo.callkeep;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import io.wazo.callkeep.utils.ConstraintsArray;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Building the arguments of an event, reading a setup option back, and building and reading the
+ * members of a conference.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConstraintsMapBenchmark {
+    private static final int CONFERENCE_MEMBERS = 8;
+
+    private String uuid;
+    private ConstraintsMap options;
+    private String[] memberUuids;
+    private ConstraintsMap conference;
+
+    @Setup
+    public void setUp() {
+        uuid = UUID.randomUUID().toString();
+        options = new ConstraintsMap();
+        options.putInt("batchWindowMs", 16);
+        options.putDouble("reachabilityPercentile", 0.95);
+        options.putString("logLevel", "info");
+
+        memberUuids = new String[CONFERENCE_MEMBERS];
+        for (int i = 0; i < memberUuids.length; i++) {
+            memberUuids[i] = UUID.randomUUID().toString();
+        }
+        conference = new ConstraintsMap();
+        conference.putArray("members", buildMembers());
+    }
+
+    @Benchmark
+    public Map<String, Object> buildEvent() {
+        ConstraintsMap args = new ConstraintsMap();
+        args.putBoolean("hold", true);
+        args.putString("callUUID", uuid);
+        return args.toMap();
+    }
+
+    @Benchmark
+    public long readOptions() {
+        return options.getInt("batchWindowMs", 0)
+                + (long) options.getDouble("reachabilityPercentile", 0)
+                + options.getString("logLevel", "").length();
+    }
+
+    @Benchmark
+    public ArrayList<Object> buildMembers() {
+        ConstraintsArray members = new ConstraintsArray();
+        for (String uuid : memberUuids) {
+            members.pushString(uuid);
+        }
+        return members.toArrayList();
+    }
+
+    @Benchmark
+    public int readMembers() {
+        // As the CallKeepModule reads a conference change
+        ConstraintsArray members = conference.getArray("members");
+        int length = 0;
+        for (int i = 0; members != null && i < members.size(); i++) {
+            length += members.getString(i).length();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,168 @@
+package io.wazo.callkeep;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventCoalescerTest {
+    private static final String UUID = "call";
+
+    private final List<String> events = new ArrayList<>();
+    private final List<ConstraintsMap> arguments = new ArrayList<>();
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private EventCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+        coalescer = new EventCoalescer((eventName, args) -> {
+            events.add(eventName);
+            arguments.add(args);
+        }, scheduler);
+    }
+
+    @Test
+    public void deliversEveryToggleWithoutWindow() {
+        coalescer.offer(UUID, EventCoalescer.Kind.MUTE, true);
+        coalescer.offer(UUID, EventCoalescer.Kind.MUTE, false);
+
+        assertEquals(2, events.size());
+        assertEquals(0, scheduler.tasks.size());
+    }
+
+    @Test
+    public void deliversTheFinalStateOnceStable() {
+        coalescer.configure(100);
+        coalescer.offer(UUID, EventCoalescer.Kind.MUTE, true);
+        scheduler.advance(50);
+        coalescer.offer(UUID, EventCoalescer.Kind.MUTE, false);
+        coalescer.offer(UUID, EventCoalescer.Kind.MUTE, true);
+        scheduler.advance(99);
+        assertEquals(0, events.size());
+
+        scheduler.advance(1);
+        assertEquals(1, events.size());
+        assertTrue(muted(0));
+        ConstraintsMap metrics = coalescer.toConstraintsMap();
+        assertEquals(3, metrics.getInt("offered"));
+        assertEquals(1, metrics.getInt("delivered"));
+        assertEquals(2, metrics.getInt("suppressed"));
+    }
+
+    @Test
+    public void dropsTogglesBackToTheDeliveredState() {
+        coalescer.configure(100);
+        coalescer.offer(UUID, EventCoalescer.Kind.HOLD, true);
+        scheduler.advance(100);
+        coalescer.offer(UUID, EventCoalescer.Kind.HOLD, false);
+        coalescer.offer(UUID, EventCoalescer.Kind.HOLD, true);
+        scheduler.advance(100);
+
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void endCallDeliversHeldBackTogglesAndForgetsTheCall() {
+        coalescer.configure(100);
+        coalescer.offer(UUID, EventCoalescer.Kind.MUTE, true);
+        coalescer.offer(UUID, EventCoalescer.Kind.HOLD, true);
+        coalescer.endCall(UUID);
+
+        assertEquals(2, events.size());
+        assertEquals(0, scheduler.tasks.size());
+        assertEquals(0, coalescer.toConstraintsMap().getInt("pending"));
+
+        // A call reusing the UUID starts from scratch
+        coalescer.offer(UUID, EventCoalescer.Kind.MUTE, true);
+        scheduler.advance(100);
+        assertEquals(3, events.size());
+    }
+
+    @Test
+    public void overrideSupersedesTheHeldBackToggle() {
+        coalescer.configure(100);
+        coalescer.offer(UUID, EventCoalescer.Kind.MUTE, true);
+        coalescer.override(UUID, EventCoalescer.Kind.MUTE, true);
+        scheduler.advance(100);
+        assertEquals(0, events.size());
+
+        coalescer.offer(UUID, EventCoalescer.Kind.MUTE, false);
+        scheduler.advance(100);
+        assertEquals(1, events.size());
+        assertFalse(muted(0));
+    }
+
+    @Test
+    public void disablingTheWindowFlushesHeldBackToggles() {
+        coalescer.configure(100);
+        coalescer.offer(UUID, EventCoalescer.Kind.MUTE, true);
+        coalescer.offer("other", EventCoalescer.Kind.HOLD, true);
+        coalescer.configure(0);
+
+        assertEquals(2, events.size());
+        assertEquals(0, scheduler.tasks.size());
+    }
+
+    private boolean muted(int index) {
+        assertEquals(EventCoalescer.Kind.MUTE.eventName, events.get(index));
+        return arguments.get(index).getBoolean("muted");
+    }
+
+    /**
+     * Runs the delayed tasks when the test advances its clock.
+     */
+    private static class ManualScheduler implements EventCoalescer.Scheduler {
+        final List<Task> tasks = new ArrayList<>();
+        long now = 0;
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            tasks.add(new Task(task, now + delayMs));
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            Iterator<Task> iterator = tasks.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().runnable == task) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        void advance(long ms) {
+            now += ms;
+            while (true) {
+                Task due = null;
+                for (Task task : tasks) {
+                    if (task.at <= now && (due == null || task.at < due.at)) {
+                        due = task;
+                    }
+                }
+                if (due == null) {
+                    return;
+                }
+                tasks.remove(due);
+                due.runnable.run();
+            }
+        }
+    }
+
+    private static class Task {
+        final Runnable runnable;
+        final long at;
+
+        Task(Runnable runnable, long at) {
+            this.runnable = runnable;
+            this.at = at;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package io.wazo.callkeep;
+
+import androidx.annotation.Nullable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.MethodChannel;
+import io.flutter.plugin.common.StandardMethodCodec;
+import io.wazo.callkeep.utils.CallKeepMessageCodec;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Emission of an unbatched event as CallKeepModule.sendEventToFlutter does it: building its
+ * arguments, encoding them with the codec of the event channel and handing them to the messenger.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventEmissionBenchmark {
+    @Param({"standard", "compact"})
+    public String codecName;
+
+    private MethodChannel channel;
+    private String uuid;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        BinaryMessenger messenger = new BinaryMessenger() {
+            @Override
+            public void send(String channel, ByteBuffer message) {
+                blackhole.consume(message);
+            }
+
+            @Override
+            public void send(String channel, ByteBuffer message, @Nullable BinaryReply callback) {
+                blackhole.consume(message);
+            }
+
+            @Override
+            public void setMessageHandler(String channel, @Nullable BinaryMessageHandler handler) {
+            }
+        };
+        channel = codecName.equals("compact")
+                ? new MethodChannel(messenger, "FlutterCallKeep.Event/compact", new StandardMethodCodec(CallKeepMessageCodec.INSTANCE))
+                : new MethodChannel(messenger, "FlutterCallKeep.Event");
+        uuid = UUID.randomUUID().toString();
+    }
+
+    @Benchmark
+    public void emit() {
+        ConstraintsMap args = new ConstraintsMap();
+        args.putBoolean("hold", true);
+        args.putString("callUUID", uuid);
+        channel.invokeMethod("CallKeepDidToggleHoldAction", args.toMap());
+    }
+}
@@ -0,0 +1,112 @@
+package io.wazo.callkeep;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FlightRecorderTest {
+    private static final int WRITERS = 4;
+    private static final int RECORDS = 200_000;
+
+    @Test
+    public void dumpsOnlyWholeEntriesWhileRecording() throws InterruptedException {
+        // Replaces the entries of other tests with those of an extra writer
+        for (int i = 0; i < FlightRecorder.CAPACITY; i++) {
+            record(WRITERS, i);
+        }
+        final long recordedBefore = FlightRecorder.dump().getLong("recorded", 0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean recording = new AtomicBoolean(true);
+        final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+
+        List<Thread> writers = new ArrayList<>();
+        for (int writer = 0; writer < WRITERS; writer++) {
+            final int id = writer;
+            writers.add(new Thread(() -> {
+                await(start);
+                for (int i = 0; i < RECORDS; i++) {
+                    record(id, i);
+                }
+            }));
+        }
+        Thread reader = new Thread(() -> {
+            await(start);
+            while (recording.get()) {
+                check(FlightRecorder.dump(), failures);
+            }
+        });
+
+        reader.start();
+        for (Thread thread : writers) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        recording.set(false);
+        reader.join();
+
+        assertEquals("[]", failures.toString());
+        ConstraintsMap dump = FlightRecorder.dump();
+        assertEquals(recordedBefore + WRITERS * RECORDS, dump.getLong("recorded", 0));
+        // Nothing is being written anymore, the whole ring is dumped
+        assertEquals(FlightRecorder.CAPACITY, check(dump, failures));
+        assertEquals("[]", failures.toString());
+    }
+
+    /**
+     * Each field of an entry identifies its writer, a torn entry mixes writers.
+     */
+    private static void record(int writer, int index) {
+        int action = writer % 2 == 0 ? FlightRecorder.HELD : FlightRecorder.MUTED;
+        FlightRecorder.record(action, "writer-" + writer, ((long) writer << 32) | index);
+    }
+
+    /**
+     * @return the number of entries of the dump
+     */
+    @SuppressWarnings("unchecked")
+    private static int check(ConstraintsMap dump, ConcurrentLinkedQueue<String> failures) {
+        ArrayList<Object> entries = dump.getListArray("entries");
+        long[] last = new long[WRITERS + 1];
+        Arrays.fill(last, -1);
+        for (Object value : entries) {
+            Map<String, Object> entry = (Map<String, Object>) value;
+            long payload = (Long) entry.get("payload");
+            int id = (int) (payload >>> 32);
+            long index = payload & 0xffffffffL;
+            String action = id % 2 == 0 ? "held" : "muted";
+            if (id > WRITERS || !("writer-" + id).equals(entry.get("uuid")) || !action.equals(entry.get("action"))) {
+                failures.add("torn entry " + entry);
+                continue;
+            }
+            // Oldest first, so the records of a writer appear in order
+            if (index <= last[id]) {
+                failures.add("writer-" + id + " entry " + index + " after " + last[id]);
+            }
+            last[id] = index;
+        }
+        return entries.size();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
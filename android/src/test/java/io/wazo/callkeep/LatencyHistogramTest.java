@@ -0,0 +1,57 @@
+package io.wazo.callkeep;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class LatencyHistogramTest {
+    private static final long MS = 1000000;
+
+    @Test
+    public void reportsPercentilesAsBucketUpperBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int ms = 1; ms <= 100; ms++) {
+            histogram.record(ms * MS);
+        }
+
+        Map<String, Object> metrics = histogram.toConstraintsMap().toMap();
+        assertEquals(100, metrics.get("count"));
+        assertEquals(1.0, (double) metrics.get("minMs"), 0);
+        assertEquals(100.0, (double) metrics.get("maxMs"), 0);
+        assertEquals(50.5, (double) metrics.get("meanMs"), 1e-9);
+        assertEquals(50.0, (double) metrics.get("p50Ms"), 0);
+        assertEquals(100.0, (double) metrics.get("p90Ms"), 0);
+        assertEquals(100.0, (double) metrics.get("p99Ms"), 0);
+    }
+
+    @Test
+    public void boundsPercentilesByTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3 * MS);
+        histogram.record(12000 * MS);
+
+        Map<String, Object> metrics = histogram.toConstraintsMap().toMap();
+        // The bucket of 3ms goes up to 5ms
+        assertEquals(5.0, (double) metrics.get("p50Ms"), 0);
+        // The overflow bucket has no upper bound
+        assertEquals(12000.0, (double) metrics.get("p99Ms"), 0);
+
+        LatencyHistogram single = new LatencyHistogram();
+        single.record(3 * MS);
+        assertEquals(3.0, (double) single.toConstraintsMap().toMap().get("p99Ms"), 0);
+    }
+
+    @Test
+    public void resetDropsEverySample() {
+        LatencyHistogram histogram = new LatencyHistogram(new long[] {10, Long.MAX_VALUE});
+        histogram.record(5 * MS);
+        histogram.reset();
+
+        Map<String, Object> metrics = histogram.toConstraintsMap().toMap();
+        assertEquals(0, metrics.get("count"));
+        assertFalse(metrics.containsKey("p50Ms"));
+    }
+}
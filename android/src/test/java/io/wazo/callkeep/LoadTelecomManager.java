@@ -0,0 +1,77 @@
+package io.wazo.callkeep;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.TelecomManager;
+
+import androidx.annotation.Nullable;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowTelecomManager;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Stand-in for Telecom in the load simulation. Registered accounts are enabled right away, and the
+ * incoming and outgoing calls are queued until the simulation plays Telecom and asks the
+ * ConnectionService for their connection, as system_server would once bound.
+ */
+@Implements(TelecomManager.class)
+public class LoadTelecomManager extends ShadowTelecomManager {
+    static final class Request {
+        final boolean incoming;
+        @Nullable final PhoneAccountHandle handle;
+        @Nullable final Uri address;
+        final Bundle extras;
+
+        Request(boolean incoming, @Nullable PhoneAccountHandle handle, @Nullable Uri address, Bundle extras) {
+            this.incoming = incoming;
+            this.handle = handle;
+            this.address = address;
+            this.extras = extras;
+        }
+    }
+
+    // Filled from the executor threads, drained on the main thread
+    private final ConcurrentLinkedQueue<Request> requests = new ConcurrentLinkedQueue<>();
+
+    @Nullable
+    Request poll() {
+        return requests.poll();
+    }
+
+    @Override
+    @Implementation
+    protected synchronized void registerPhoneAccount(PhoneAccount account) {
+        // The user enabled the account in the settings
+        PhoneAccount.Builder enabled = ReflectionHelpers.callInstanceMethod(account, "toBuilder");
+        ReflectionHelpers.callInstanceMethod(enabled, "setIsEnabled",
+                ReflectionHelpers.ClassParameter.from(boolean.class, true));
+        super.registerPhoneAccount(enabled.build());
+    }
+
+    @Override
+    @Implementation
+    protected synchronized PhoneAccount getPhoneAccount(PhoneAccountHandle handle) {
+        return super.getPhoneAccount(handle);
+    }
+
+    @Override
+    @Implementation
+    protected void addNewIncomingCall(PhoneAccountHandle handle, Bundle extras) {
+        Uri address = extras.getParcelable(TelecomManager.EXTRA_INCOMING_CALL_ADDRESS);
+        requests.add(new Request(true, handle, address, extras));
+    }
+
+    @Override
+    @Implementation
+    protected void placeCall(Uri address, Bundle extras) {
+        PhoneAccountHandle handle = extras.getParcelable(TelecomManager.EXTRA_PHONE_ACCOUNT_HANDLE);
+        Bundle callExtras = extras.getBundle(TelecomManager.EXTRA_OUTGOING_CALL_EXTRAS);
+        requests.add(new Request(false, handle, address, callExtras != null ? callExtras : new Bundle()));
+    }
+}
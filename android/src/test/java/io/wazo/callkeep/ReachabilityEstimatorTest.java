@@ -0,0 +1,79 @@
+package io.wazo.callkeep;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReachabilityEstimatorTest {
+    @Test
+    public void usesTheCeilingUntilEnoughSamples() {
+        ReachabilityEstimator estimator = new ReachabilityEstimator();
+        for (int i = 0; i < 4; i++) {
+            estimator.record(30);
+        }
+        assertEquals(ReachabilityEstimator.DEFAULT_CEILING_MS, estimator.timeoutMs());
+
+        estimator.record(30);
+        assertEquals(ReachabilityEstimator.DEFAULT_FLOOR_MS, estimator.timeoutMs());
+    }
+
+    @Test
+    public void usesTheUpperBoundOfThePercentileBucket() {
+        ReachabilityEstimator estimator = new ReachabilityEstimator();
+        estimator.configure(0.95, 0, 2000);
+        for (int i = 0; i < 100; i++) {
+            estimator.record(60);
+        }
+        assertEquals(75, estimator.timeoutMs());
+
+        // 10 slow answers out of 110 move the 95th percentile
+        for (int i = 0; i < 10; i++) {
+            estimator.record(900);
+        }
+        assertEquals(1000, estimator.timeoutMs());
+
+        for (int i = 0; i < 100; i++) {
+            estimator.record(60000);
+        }
+        assertEquals(2000, estimator.timeoutMs());
+    }
+
+    @Test
+    public void halvesTheHistogramPastTheMaximumSamples() {
+        ReachabilityEstimator estimator = new ReachabilityEstimator();
+        for (int i = 0; i < 200; i++) {
+            estimator.record(60);
+        }
+        assertEquals(200, estimator.samples());
+
+        estimator.record(60);
+        assertEquals(100, estimator.samples());
+    }
+
+    @Test
+    public void restoresEncodedCounts() {
+        ReachabilityEstimator estimator = new ReachabilityEstimator();
+        estimator.configure(0.5, 0, 5000);
+        for (int i = 0; i < 10; i++) {
+            estimator.record(i < 6 ? 120 : 2500);
+        }
+
+        ReachabilityEstimator restored = new ReachabilityEstimator();
+        restored.configure(0.5, 0, 5000);
+        restored.restore(estimator.encode());
+        assertEquals(estimator.encode(), restored.encode());
+        assertEquals(10, restored.samples());
+        assertEquals(150, restored.timeoutMs());
+    }
+
+    @Test
+    public void ignoresCountsOfAnotherLayout() {
+        ReachabilityEstimator estimator = new ReachabilityEstimator();
+        String empty = estimator.encode();
+        estimator.restore("1,2,3");
+        estimator.restore(empty.replaceFirst("0", "x"));
+        estimator.restore(null);
+        assertEquals(empty, estimator.encode());
+        assertEquals(0, estimator.samples());
+    }
+}
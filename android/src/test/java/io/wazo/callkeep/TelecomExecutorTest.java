@@ -0,0 +1,151 @@
+package io.wazo.callkeep;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TelecomExecutorTest {
+    private ExecutorService mainThread;
+    private TelecomExecutor executor;
+
+    @Before
+    public void setUp() {
+        // Stands in for the main looper
+        mainThread = Executors.newSingleThreadExecutor();
+        executor = new TelecomExecutor(mainThread);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+        mainThread.shutdownNow();
+    }
+
+    @Test
+    public void runsTheOperationsOfACallInSubmissionOrder() throws InterruptedException {
+        final int calls = 8;
+        final int operations = 200;
+        final List<List<Integer>> runs = new ArrayList<>();
+        for (int call = 0; call < calls; call++) {
+            runs.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        final CountDownLatch done = new CountDownLatch(calls * operations);
+
+        for (int i = 0; i < operations; i++) {
+            for (int call = 0; call < calls; call++) {
+                final List<Integer> run = runs.get(call);
+                final int index = i;
+                // Alternates between the workers and the main thread
+                assertTrue(executor.submit("call-" + call, (i + call) % 3 == 0, () -> {
+                    run.add(index);
+                    done.countDown();
+                }));
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (List<Integer> run : runs) {
+            assertEquals(operations, run.size());
+            for (int i = 0; i < operations; i++) {
+                assertEquals(i, (int) run.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void globalOperationsAreBarriers() throws InterruptedException {
+        final int calls = 6;
+        final AtomicInteger before = new AtomicInteger();
+        final AtomicInteger after = new AtomicInteger();
+        final AtomicInteger seenBefore = new AtomicInteger(-1);
+        final AtomicInteger seenAfter = new AtomicInteger(-1);
+        final CountDownLatch done = new CountDownLatch(2 * calls + 1);
+
+        for (int call = 0; call < calls; call++) {
+            executor.submit("call-" + call, call % 2 == 0, () -> {
+                sleep(20);
+                before.incrementAndGet();
+                done.countDown();
+            });
+        }
+        executor.submit(null, true, () -> {
+            seenBefore.set(before.get());
+            sleep(20);
+            seenAfter.set(after.get());
+            done.countDown();
+        });
+        for (int call = 0; call < calls; call++) {
+            executor.submit("call-" + call, call % 2 == 1, () -> {
+                after.incrementAndGet();
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(calls, seenBefore.get());
+        assertEquals(0, seenAfter.get());
+        assertEquals(calls, after.get());
+    }
+
+    @Test
+    public void globalOperationsRunAloneInSubmissionOrder() throws InterruptedException {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(6);
+
+        for (int i = 0; i < 6; i++) {
+            final String name = (i % 2 == 0 ? "global-" : "call-") + i;
+            Runnable task = () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                sleep(10);
+                order.add(name);
+                running.decrementAndGet();
+                done.countDown();
+            };
+            executor.submit(i % 2 == 0 ? null : name, false, task);
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, maxRunning.get());
+        assertEquals("[global-0, call-1, global-2, call-3, global-4, call-5]", order.toString());
+    }
+
+    @Test
+    public void shutdownCompletesTheQueuedOperations() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(3);
+        executor.submit("call", false, () -> {
+            sleep(20);
+            done.countDown();
+        });
+        executor.submit(null, false, done::countDown);
+        executor.submit("call", true, done::countDown);
+
+        executor.shutdown();
+
+        assertTrue(executor.isShutdown());
+        assertFalse(executor.submit("call", false, () -> { }));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package io.wazo.callkeep.utils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.flutter.plugin.common.StandardMessageCodec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CallKeepMessageCodecTest {
+    private static final String UUID = "0f8fad5b-d9cb-469f-a165-70867728950e";
+
+    @Test
+    public void roundTripsEvents() {
+        ConstraintsMap body = new ConstraintsMap();
+        body.putString("callUUID", UUID);
+        body.putBoolean("hold", true);
+        body.putString("name", "Alice");
+        body.putInt("reason", 2);
+        body.putLong("time", 123456789012L);
+        body.putDouble("p50Ms", 1.5);
+        ArrayList<Object> members = new ArrayList<>();
+        members.add(UUID);
+        members.add("not-a-uuid");
+        members.add(null);
+        body.putArray("members", members);
+        ConstraintsMap event = new ConstraintsMap();
+        event.putString("event", "CallKeepDidChangeConference");
+        event.putMap("body", body.toMap());
+
+        assertEquals(event.toMap(), roundTrip(event.toMap()));
+    }
+
+    @Test
+    public void packsTagsAndCanonicalUuids() {
+        // Type byte and table index
+        assertEquals(2, encode("CallKeepDidToggleHoldAction").length);
+        // Type byte and 16 raw bytes, instead of a 36 character string
+        assertEquals(17, encode(UUID).length);
+        assertEquals(UUID, roundTrip(UUID));
+    }
+
+    @Test
+    public void fallsBackToTheStandardEncoding() {
+        String[] values = {
+                UUID.toUpperCase(), UUID.replace("-", ""), UUID.substring(1) + "0", "callUUID ", "",
+        };
+        for (String value : values) {
+            assertArrayEquals(value, standardEncode(value), encode(value));
+            assertEquals(value, roundTrip(value));
+        }
+    }
+
+    @Test
+    public void tagTableMatchesTheDartCodec() throws Exception {
+        Field field = CallKeepMessageCodec.class.getDeclaredField("TAGS");
+        field.setAccessible(true);
+        String[] tags = (String[]) field.get(null);
+
+        assertEquals(Arrays.asList(tags), dartTags());
+        assertTrue(tags.length <= 256);
+    }
+
+    private static Object roundTrip(Object value) {
+        ByteBuffer buffer = CallKeepMessageCodec.INSTANCE.encodeMessage(value);
+        buffer.rewind();
+        return CallKeepMessageCodec.INSTANCE.decodeMessage(buffer);
+    }
+
+    private static byte[] encode(Object value) {
+        return bytes(CallKeepMessageCodec.INSTANCE.encodeMessage(value));
+    }
+
+    private static byte[] standardEncode(Object value) {
+        return bytes(StandardMessageCodec.INSTANCE.encodeMessage(value));
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        buffer.rewind();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads the tag table of lib/src/codec.dart, relative to the android module or the package.
+     */
+    private static List<String> dartTags() throws IOException {
+        File file = new File("../lib/src/codec.dart");
+        if (!file.exists()) {
+            file = new File("lib/src/codec.dart");
+        }
+        assertTrue(file.getAbsolutePath(), file.exists());
+        String source = new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8"));
+
+        int start = source.indexOf("_tags = <String>[");
+        int end = source.indexOf("];", start);
+        assertTrue(start >= 0 && end > start);
+        ArrayList<String> tags = new ArrayList<>();
+        Matcher matcher = Pattern.compile("'([^']*)'").matcher(source.substring(start, end));
+        while (matcher.find()) {
+            tags.add(matcher.group(1));
+        }
+        return tags;
+    }
+}
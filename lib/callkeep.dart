@@ -1,3 +1,4 @@
 export 'src/actions.dart';
 export 'src/api.dart';
+export 'src/background.dart' show CallKeepBackgroundHandler;
 export 'src/event.dart';
@@ -77,6 +77,44 @@ class CallKeepDidPerformDTMFAction extends EventType {
   String digits;
 }
 
+/// Membership or state change of an Android conference, as a delta.
+///
+/// [removed] calls left the conference and go on as regular calls, or ended
+/// on their own and were reported separately. [disconnected] calls were ended
+/// with the conference. [hold] and [muted] are only set when they changed,
+/// and apply to all [members].
+class CallKeepDidChangeConference extends EventType {
+  CallKeepDidChangeConference();
+  CallKeepDidChangeConference.fromMap(Map<dynamic, dynamic> arguments)
+      : conferenceId = arguments['conferenceId'] as String,
+        members = _uuids(arguments['members']),
+        added = _uuids(arguments['added']),
+        removed = _uuids(arguments['removed']),
+        disconnected = _uuids(arguments['disconnected']),
+        hold = arguments['hold'] as bool,
+        muted = arguments['muted'] as bool,
+        active = arguments['active'] as bool;
+  String conferenceId;
+  List<String> members;
+  List<String> added;
+  List<String> removed;
+  List<String> disconnected;
+  bool hold;
+  bool muted;
+  bool active;
+
+  static List<String> _uuids(dynamic value) =>
+      value == null ? <String>[] : (value as List<dynamic>).cast<String>();
+}
+
+/// Android only: the events raised for the calls of a batchCallControl
+/// request with aggregateEvents, in the order they were raised. They are
+/// delivered together, before the reply, instead of one by one.
+class CallKeepDidPerformBatchCallControl extends EventType {
+  CallKeepDidPerformBatchCallControl();
+  List<EventType> events;
+}
+
 class CallKeepProviderReset extends EventType {
   CallKeepProviderReset();
 }
@@ -1,5 +1,6 @@
 import 'dart:async';
 import 'dart:io';
+import 'dart:ui' show PluginUtilities;
 
 import 'package:flutter/material.dart'
     show
@@ -15,6 +16,8 @@ import 'package:flutter/services.dart';
 import 'package:flutter/services.dart' show MethodChannel;
 
 import 'actions.dart';
+import 'background.dart';
+import 'codec.dart';
 import 'event.dart';
 
 bool get isIOS => Platform.isIOS;
@@ -27,10 +30,20 @@ class FlutterCallkeep extends EventManager {
   }
   FlutterCallkeep._internal() {
     _event.setMethodCallHandler(eventListener);
+    _compactEvent.setMethodCallHandler(eventListener);
   }
   static final FlutterCallkeep _instance = FlutterCallkeep._internal();
-  static const MethodChannel _channel = MethodChannel('FlutterCallKeep.Method');
+  static const MethodChannel _standardChannel =
+      MethodChannel('FlutterCallKeep.Method');
   static const MethodChannel _event = MethodChannel('FlutterCallKeep.Event');
+  // Android only, used once the compact codec has been negotiated in setup
+  static const MethodChannel _compactChannel = MethodChannel(
+      'FlutterCallKeep.Method/compact',
+      StandardMethodCodec(CallKeepMessageCodec()));
+  static const MethodChannel _compactEvent = MethodChannel(
+      'FlutterCallKeep.Event/compact',
+      StandardMethodCodec(CallKeepMessageCodec()));
+  MethodChannel _channel = _standardChannel;
   BuildContext _context;
 
   Future<void> setup(Map<String, dynamic> options) async {
@@ -159,6 +172,52 @@ class FlutterCallkeep extends EventManager {
     }
   }
 
+  /// Runs several call-control commands in one platform call.
+  ///
+  /// Each command is a map with a 'method' (endCall, rejectCall, setMutedCall,
+  /// setOnHold or reportEndCallWithUUID), a 'uuid' and the arguments of that
+  /// method ('muted', 'hold' or 'reason'). Returns one {uuid, success, error}
+  /// map per command, in order. On Android, [aggregateEvents] delivers the
+  /// events raised for the calls of the batch as a single
+  /// [CallKeepDidPerformBatchCallControl], before the reply, instead of one
+  /// event each.
+  Future<List<dynamic>> batchCallControl(List<Map<String, dynamic>> commands,
+      {bool aggregateEvents = false}) async {
+    if (!isIOS) {
+      return await _channel.invokeMethod<List<dynamic>>(
+          'batchCallControl', <String, dynamic>{
+        'commands': commands,
+        'aggregateEvents': aggregateEvents,
+      });
+    }
+    final results = <dynamic>[];
+    for (final command in commands) {
+      final result = <String, dynamic>{'uuid': command['uuid']};
+      try {
+        final method = command['method'] as String;
+        // iOS has no rejectCall, it ends the call instead
+        await _channel.invokeMethod<void>(
+            method == 'rejectCall' ? 'endCall' : method, command);
+        result['success'] = true;
+      } on PlatformException catch (e) {
+        result['success'] = false;
+        result['error'] = e.message;
+      }
+      results.add(result);
+    }
+    return results;
+  }
+
+  /// Ends all the given calls in one platform call, see [batchCallControl].
+  Future<List<dynamic>> endCalls(List<String> uuids,
+      {bool aggregateEvents = false}) {
+    final commands = <Map<String, dynamic>>[];
+    for (final uuid in uuids) {
+      commands.add(<String, dynamic>{'method': 'endCall', 'uuid': uuid});
+    }
+    return batchCallControl(commands, aggregateEvents: aggregateEvents);
+  }
+
   Future<bool> isCallActive(String uuid) async => await _channel
       .invokeMethod<bool>('isCallActive', <String, dynamic>{'uuid': uuid});
 
@@ -290,6 +349,39 @@ class FlutterCallkeep extends EventManager {
     await _channel.invokeMethod('dismissCustomIncomingCall');
   }
 
+  /// Android only: per-stage latency histograms of the incoming call path
+  /// ('stages'), the depth of the per-call command queues ('queues'), the
+  /// background wakeup latency ('backgroundWakeups'), the wake lock held
+  /// times ('wakeLocks'), the mute and hold toggles suppressed by the
+  /// 'coalesceWindowMs' setup option ('coalescing') and the samples behind
+  /// the reachability check timeout ('reachability').
+  Future<Map<dynamic, dynamic>> getMetrics() async {
+    if (isIOS) {
+      return <dynamic, dynamic>{};
+    }
+    return await _channel
+        .invokeMethod<Map<dynamic, dynamic>>('getMetrics', <String, dynamic>{});
+  }
+
+  Future<void> resetMetrics() async {
+    if (isIOS) {
+      return;
+    }
+    await _channel.invokeMethod<void>('resetMetrics', <String, dynamic>{});
+  }
+
+  /// Android only: the last call actions and connection state transitions,
+  /// oldest first. Each entry holds its 'time' in elapsedRealtimeNanos, the
+  /// 'action', the call 'uuid' and an action specific 'payload'. The clocks
+  /// returned along with the entries convert these times to wall clock time.
+  Future<Map<dynamic, dynamic>> dumpFlightRecorder() async {
+    if (isIOS) {
+      return <dynamic, dynamic>{};
+    }
+    return await _channel.invokeMethod<Map<dynamic, dynamic>>(
+        'dumpFlightRecorder', <String, dynamic>{});
+  }
+
   Future<void> _setupIOS(Map<String, dynamic> options) async {
     if (options['appName'] == null) {
       throw Exception('CallKeep.setup: option "appName" is required');
@@ -303,7 +395,9 @@ class FlutterCallkeep extends EventManager {
   }
 
   Future<bool> _setupAndroid(Map<String, dynamic> options) async {
-    await _channel.invokeMethod<void>('setup', {'options': options});
+    final compactCodec = await _standardChannel.invokeMethod<bool>(
+        'setup', {'options': _androidSetupOptions(options)});
+    _channel = compactCodec == true ? _compactChannel : _standardChannel;
     final showAccountAlert = await _checkPhoneAccountPermission(
         options['additionalPermissions'] as List<String> ?? <String>[]);
     final shouldOpenAccounts = await _alert(options, showAccountAlert);
@@ -315,6 +409,27 @@ class FlutterCallkeep extends EventManager {
     return false;
   }
 
+  /// Replaces the 'backgroundHandler' function, which cannot be sent to the
+  /// platform, with the callback handles used by the headless engine.
+  Map<String, dynamic> _androidSetupOptions(Map<String, dynamic> options) {
+    final dynamic handler = options['backgroundHandler'];
+    if (handler == null) {
+      return options;
+    }
+    final handlerHandle =
+        PluginUtilities.getCallbackHandle(handler as CallKeepBackgroundHandler);
+    if (handlerHandle == null) {
+      throw Exception('CallKeep.setup: option "backgroundHandler" should be '
+          'a top-level or static function');
+    }
+    return Map<String, dynamic>.from(options)
+      ..remove('backgroundHandler')
+      ..['backgroundDispatcherHandle'] = PluginUtilities.getCallbackHandle(
+              callKeepBackgroundDispatcher)
+          .toRawHandle()
+      ..['backgroundHandlerHandle'] = handlerHandle.toRawHandle();
+  }
+
   Future<void> _openPhoneAccounts() async {
     if (!Platform.isAndroid) {
       return;
@@ -371,47 +486,98 @@ class FlutterCallkeep extends EventManager {
 
   Future<void> eventListener(MethodCall call) async {
     print('[CallKeep] INFO: received event "${call.method}" ${call.arguments}');
-    final data = call.arguments as Map<dynamic, dynamic>;
-    switch (call.method) {
+    final events = <EventType>[];
+    if (call.method == 'CallKeepEventBatch' ||
+        call.method == 'CallKeepDidPerformBatchCallControl') {
+      // Android delivers events raised close together as one ordered batch
+      for (final dynamic event in call.arguments as List<dynamic>) {
+        final item = event as Map<dynamic, dynamic>;
+        _parseEvent(item['event'] as String,
+            item['body'] as Map<dynamic, dynamic>, events);
+      }
+    } else {
+      _parseEvent(call.method, call.arguments as Map<dynamic, dynamic>, events);
+    }
+
+    if (call.method == 'CallKeepDidPerformBatchCallControl') {
+      emit(CallKeepDidPerformBatchCallControl()..events = events);
+      return;
+    }
+    for (final event in events) {
+      emit(event);
+    }
+  }
+
+  void _parseEvent(
+      String method, Map<dynamic, dynamic> data, List<EventType> events) {
+    switch (method) {
       case 'CallKeepDidReceiveStartCallAction':
-        emit(CallKeepDidReceiveStartCallAction.fromMap(data));
+        events.add(CallKeepDidReceiveStartCallAction.fromMap(data));
         break;
       case 'CallKeepPerformAnswerCallAction':
-        emit(CallKeepPerformAnswerCallAction.fromMap(data));
+        events.add(CallKeepPerformAnswerCallAction.fromMap(data));
         break;
       case 'CallKeepPerformEndCallAction':
-        emit(CallKeepPerformEndCallAction.fromMap(data));
+        events.add(CallKeepPerformEndCallAction.fromMap(data));
         break;
       case 'CallKeepDidActivateAudioSession':
-        emit(CallKeepDidActivateAudioSession());
+        events.add(CallKeepDidActivateAudioSession());
         break;
       case 'CallKeepDidDeactivateAudioSession':
-        emit(CallKeepDidActivateAudioSession());
+        events.add(CallKeepDidActivateAudioSession());
         break;
       case 'CallKeepDidDisplayIncomingCall':
-        emit(CallKeepDidDisplayIncomingCall.fromMap(data));
+        events.add(CallKeepDidDisplayIncomingCall.fromMap(data));
         break;
       case 'CallKeepDidPerformSetMutedCallAction':
-        emit(CallKeepDidPerformSetMutedCallAction.fromMap(data));
+        events.add(CallKeepDidPerformSetMutedCallAction.fromMap(data));
         break;
       case 'CallKeepDidToggleHoldAction':
-        emit(CallKeepDidToggleHoldAction.fromMap(data));
+        events.add(CallKeepDidToggleHoldAction.fromMap(data));
         break;
       case 'CallKeepDidPerformDTMFAction':
-        emit(CallKeepDidPerformDTMFAction.fromMap(data));
+        events.add(CallKeepDidPerformDTMFAction.fromMap(data));
         break;
       case 'CallKeepProviderReset':
-        emit(CallKeepProviderReset());
+        events.add(CallKeepProviderReset());
         break;
       case 'CallKeepCheckReachability':
-        emit(CallKeepCheckReachability());
+        events.add(CallKeepCheckReachability());
         break;
       case 'CallKeepDidLoadWithEvents':
-        emit(CallKeepDidLoadWithEvents());
+        events.add(CallKeepDidLoadWithEvents());
         break;
       case 'CallKeepPushKitToken':
-        emit(CallKeepPushKitToken.fromMap(data));
+        events.add(CallKeepPushKitToken.fromMap(data));
+        break;
+      case 'CallKeepDidChangeConference':
+        _parseConferenceChange(
+            CallKeepDidChangeConference.fromMap(data), events);
         break;
     }
   }
+
+  /// Android reports conference changes once for all members, the per-call
+  /// events are derived here for listeners that only track single calls.
+  void _parseConferenceChange(
+      CallKeepDidChangeConference change, List<EventType> events) {
+    events.add(change);
+    for (final uuid in change.disconnected) {
+      events.add(CallKeepPerformEndCallAction()..callUUID = uuid);
+    }
+    if (change.hold != null) {
+      for (final uuid in change.members) {
+        events.add(CallKeepDidToggleHoldAction()
+          ..callUUID = uuid
+          ..hold = change.hold);
+      }
+    }
+    if (change.muted != null) {
+      for (final uuid in change.members) {
+        events.add(CallKeepDidPerformSetMutedCallAction()
+          ..callUUID = uuid
+          ..muted = change.muted);
+      }
+    }
+  }
 }
@@ -0,0 +1,42 @@
+import 'dart:ui';
+
+import 'package:flutter/services.dart';
+import 'package:flutter/widgets.dart';
+
+/// Android only: runs on a background isolate when a call needs the
+/// application while it is not running. [data] holds the 'callUUID', the
+/// 'handle' and the 'name' of the call.
+///
+/// Must be a top-level or static function.
+typedef CallKeepBackgroundHandler = Future<void> Function(
+    Map<dynamic, dynamic> data);
+
+const MethodChannel _backgroundChannel =
+    MethodChannel('FlutterCallKeep.Background');
+
+/// Entrypoint of the headless engine started by the Android plugin.
+@pragma('vm:entry-point')
+void callKeepBackgroundDispatcher() {
+  WidgetsFlutterBinding.ensureInitialized();
+  _backgroundChannel.setMethodCallHandler((MethodCall call) async {
+    if (call.method != 'wakeUpApplication') {
+      throw MissingPluginException();
+    }
+    final data = call.arguments as Map<dynamic, dynamic>;
+    final handler = PluginUtilities.getCallbackFromHandle(
+            CallbackHandle.fromRawHandle(data['callbackHandle'] as int))
+        as CallKeepBackgroundHandler;
+    if (handler == null) {
+      throw PlatformException(
+          code: 'E_NO_BACKGROUND_HANDLER',
+          message: 'Background handler not found, call setup again');
+    }
+    // Reply once the handler runs, Android measures the wakeup latency up to
+    // this point
+    // ignore: unawaited_futures
+    handler(data).catchError((dynamic error) {
+      print('[CallKeep] ERROR: background handler failed: $error');
+    });
+  });
+  _backgroundChannel.invokeMethod<void>('backgroundReady');
+}
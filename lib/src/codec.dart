@@ -0,0 +1,132 @@
+import 'dart:typed_data';
+
+import 'package:flutter/foundation.dart' show ReadBuffer, WriteBuffer;
+import 'package:flutter/services.dart' show StandardMessageCodec;
+
+/// Compact variant of the [StandardMessageCodec] used by the Android
+/// channels once negotiated in setup.
+///
+/// Well-known strings are written as a one byte tag and canonical lowercase
+/// UUIDs as 16 raw bytes. The tag table must stay in sync with
+/// io.wazo.callkeep.utils.CallKeepMessageCodec and may only be appended to.
+class CallKeepMessageCodec extends StandardMessageCodec {
+  const CallKeepMessageCodec();
+
+  static const int _tag = 128;
+  static const int _uuid = 129;
+
+  static const List<String> _tags = <String>[
+    // argument and event keys
+    'uuid', 'callUUID', 'handle', 'name', 'localizedCallerName', 'callerName',
+    'number', 'muted', 'hold', 'digits', 'reason', 'displayName', 'key',
+    'state', 'options', 'event', 'body',
+    // events
+    'CallKeepDidReceiveStartCallAction', 'CallKeepPerformAnswerCallAction',
+    'CallKeepPerformEndCallAction', 'CallKeepDidActivateAudioSession',
+    'CallKeepDidPerformSetMutedCallAction', 'CallKeepDidToggleHoldAction',
+    'CallKeepDidPerformDTMFAction', 'CallKeepCheckReachability',
+    'CallKeepEventBatch',
+    // methods
+    'displayIncomingCall', 'answerIncomingCall', 'startCall', 'endCall',
+    'endAllCalls', 'setOnHold', 'reportEndCallWithUUID', 'rejectCall',
+    'setMutedCall', 'sendDTMF', 'updateDisplay', 'setCurrentCallActive',
+    'setReachable', 'setAvailable', 'hasPhoneAccount', 'hasOutgoingCall',
+    'isCallActive',
+    'getMetrics', 'resetMetrics',
+    'batchCallControl', 'commands', 'aggregateEvents', 'method', 'success',
+    'error',
+    'CallKeepDidChangeConference', 'conferenceId', 'members', 'added',
+    'removed', 'disconnected', 'active',
+    'dumpFlightRecorder', 'entries', 'action', 'payload', 'time',
+    'CallKeepDidPerformBatchCallControl',
+  ];
+
+  static final Map<String, int> _tagIndex = _buildTagIndex();
+
+  static Map<String, int> _buildTagIndex() {
+    final index = <String, int>{};
+    for (var i = 0; i < _tags.length; i++) {
+      index[_tags[i]] = i;
+    }
+    return index;
+  }
+
+  static const int _dash = 0x2d;
+  static const String _hexDigits = '0123456789abcdef';
+
+  static bool _isDashOffset(int i) => i == 8 || i == 13 || i == 18 || i == 23;
+
+  /// Value of a lowercase hex digit code unit, or -1.
+  static int _hexValue(int codeUnit) {
+    if (codeUnit >= 0x30 && codeUnit <= 0x39) {
+      return codeUnit - 0x30;
+    }
+    if (codeUnit >= 0x61 && codeUnit <= 0x66) {
+      return codeUnit - 0x57;
+    }
+    return -1;
+  }
+
+  static bool _isUuid(String value) {
+    if (value.length != 36) {
+      return false;
+    }
+    for (var i = 0; i < 36; i++) {
+      final codeUnit = value.codeUnitAt(i);
+      if (_isDashOffset(i) ? codeUnit != _dash : _hexValue(codeUnit) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @override
+  void writeValue(WriteBuffer buffer, dynamic value) {
+    if (value is String) {
+      final tag = _tagIndex[value];
+      if (tag != null) {
+        buffer.putUint8(_tag);
+        buffer.putUint8(tag);
+        return;
+      }
+      if (_isUuid(value)) {
+        buffer.putUint8(_uuid);
+        var i = 0;
+        while (i < 36) {
+          if (_isDashOffset(i)) {
+            i++;
+            continue;
+          }
+          buffer.putUint8(_hexValue(value.codeUnitAt(i)) << 4 |
+              _hexValue(value.codeUnitAt(i + 1)));
+          i += 2;
+        }
+        return;
+      }
+    }
+    super.writeValue(buffer, value);
+  }
+
+  @override
+  dynamic readValueOfType(int type, ReadBuffer buffer) {
+    switch (type) {
+      case _tag:
+        return _tags[buffer.getUint8()];
+      case _uuid:
+        final codeUnits = Uint8List(36);
+        var i = 0;
+        while (i < 36) {
+          if (_isDashOffset(i)) {
+            codeUnits[i++] = _dash;
+            continue;
+          }
+          final byte = buffer.getUint8();
+          codeUnits[i++] = _hexDigits.codeUnitAt(byte >> 4);
+          codeUnits[i++] = _hexDigits.codeUnitAt(byte & 0x0f);
+        }
+        return String.fromCharCodes(codeUnits);
+      default:
+        return super.readValueOfType(type, buffer);
+    }
+  }
+}